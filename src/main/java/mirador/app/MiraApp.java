@@ -341,6 +341,15 @@ public class MiraApp extends PApplet {
     popMatrix();
     fill(250, alpha);
     ellipse(x, y, r - 5, r - 5);
+    float progress = loaded ? 1 : DataSet.getLoadProgress();
+    if (0 < progress) {
+      // Fraction of the data file parsed so far
+      fill(106, 179, 219, alpha);
+      arc(x, y, r - 15, r - 15, -PConstants.HALF_PI, 
+          -PConstants.HALF_PI + progress * PConstants.TWO_PI);
+      fill(250, alpha);
+      ellipse(x, y, r - 25, r - 25);
+    }
     animTime += 0.1f;
   }
   
@@ -6,6 +6,7 @@ import java.nio.file.Paths;
 import java.util.concurrent.FutureTask;
 
 import miralib.math.Numbers;
+import miralib.shannon.DependencyTest;
 import miralib.shannon.PValue;
 import miralib.utils.Project;
 import processing.core.PApplet;
@@ -27,6 +28,16 @@ import miralib.shannon.Similarity;
  */
 
 public class RowPlots extends ColumnScroller {
+  // The plots and scores are refined with samples this many times larger 
+  // than the previous ones, until the full selection is used...
+  final static protected int REFINE_FACTOR = 4;
+  // ...or, for the plots, until the next sample is expected to take longer 
+  // than this many times the maximum plot time
+  final static protected int MAX_REFINE_TIME = 10;
+  // The score is estimated from at most this many samples before the full 
+  // selection
+  final static protected int MAX_SCORE_ESTIMATES = 2;
+  
   protected Variable rowVar;
   protected PFont pFont;
   protected int pColor;
@@ -153,6 +164,10 @@ public class RowPlots extends ColumnScroller {
     return data.getColumn(var);
   }    
   
+  static protected int refineSize(int size) {
+    return size < Integer.MAX_VALUE / REFINE_FACTOR ? REFINE_FACTOR * size : Integer.MAX_VALUE;
+  }
+  
   protected class Plot extends Item {
     float triSize = Display.scale(13);
     
@@ -242,11 +257,28 @@ public class RowPlots extends ColumnScroller {
                 view = View.create(slice, mira.project.binAlgorithm);
               } else {
                 int tstart = mira.millis();
-                DataSlice2D slice = data.getSlice(var, rowVar, mira.ranges, mira.timer.getPlotSliceSize(var, rowVar));
+                int size = mira.timer.getPlotSliceSize(var, rowVar);
+                DataSlice2D slice = data.getSlice(var, rowVar, mira.ranges, size);
                 missing = slice.missing;
                 view = View.create(slice, mira.getPlotType(), mira.project.binAlgorithm);
                 int time = mira.millis() - tstart;
                 mira.timer.clockPlotTime(time, var, rowVar);
+                
+                // The plot is shown right away and then redrawn with larger 
+                // samples, which contain the previous ones since all are taken
+                // from the same random order of the rows
+                int maxTime = MAX_REFINE_TIME * mira.project.maxPlotTime;
+                while (0 < size && size < data.getRowCount() && 
+                       REFINE_FACTOR * time <= maxTime) {
+                  update = true;
+                  tstart = mira.millis();
+                  size = refineSize(size);
+                  slice = data.getSlice(var, rowVar, mira.ranges, size);
+                  if (Thread.currentThread().isInterrupted()) return;
+                  missing = slice.missing;
+                  view = View.create(slice, mira.getPlotType(), mira.project.binAlgorithm);
+                  time = mira.millis() - tstart;
+                }
               }
               update = true;
             }
@@ -258,21 +290,47 @@ public class RowPlots extends ColumnScroller {
           indepTask = mira.tasker.submitTask(new Runnable() {
             public void run() {
               score = -1;
+              depend = false;
               millis0 = mira.millis();
-              DataSlice2D slice = data.getSlice(var, rowVar, mira.ranges, Integer.MAX_VALUE);
-              if (mira.project.sortMethod == Project.SIMILARITY) {
-                if (slice.missing < mira.project.missingThreshold()) {
-                  score = Similarity.calculate(slice, mira.project.pvalue(), mira.project);
+              
+              // The score is first estimated from a few growing samples, and 
+              // each estimate is shown until a better one is available. Only 
+              // the score of the full selection decides the dependency, since 
+              // small samples can look independent (or agree by chance) when 
+              // the full one is not. The estimates use the gamma test instead 
+              // of the surrogates, so they cost little next to the full score.
+              Project estimate = new Project(mira.project);
+              if (estimate.depTest == DependencyTest.SURROGATE_GAUSS ||
+                  estimate.depTest == DependencyTest.SURROGATE_GENERAL) {
+                estimate.depTest = DependencyTest.GAMMA_TEST;
+              }
+              int size = Math.max(1, mira.timer.getPlotSliceSize(var, rowVar));
+              int count = 0;
+              while (true) {
+                boolean full = data.getRowCount() <= size;
+                Project prefs = full ? mira.project : estimate;
+                DataSlice2D slice = data.getSlice(var, rowVar, mira.ranges, size);
+                float score1 = 0;
+                boolean depend1 = false;
+                if (prefs.sortMethod == Project.SIMILARITY) {
+                  if (slice.missing < prefs.missingThreshold()) {
+                    score1 = Similarity.calculate(slice, prefs.pvalue(), prefs);
+                  }
+                  depend1 = 0 < score1;
+                } else if (prefs.sortMethod == Project.PVALUE) {
+                  float[] res = PValue.calculate(slice, prefs);
+                  float pvalue = res[1];
+                  score1 = PValue.getScore(slice, pvalue);
+                  depend1 = pvalue <= prefs.pvalue();
                 }
-                depend = 0 < score;
-              } else if (mira.project.sortMethod == Project.PVALUE) {
-                float[] res = PValue.calculate(slice, mira.project);
-                float pvalue = res[1];
-                score = PValue.getScore(slice, pvalue);
-                depend = pvalue <= mira.project.pvalue();
-              } else {
-                score = 0;
-                depend = false;
+                if (Thread.currentThread().isInterrupted()) return;
+                score = score1;
+                if (full) {
+                  depend = depend1;
+                  break;
+                }
+                count++;
+                size = count < MAX_SCORE_ESTIMATES ? refineSize(size) : Integer.MAX_VALUE;
               }
             }
           }, false);            
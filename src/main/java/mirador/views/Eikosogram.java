@@ -282,11 +282,11 @@ public class Eikosogram extends View {
     if (0 < binCountX && 0 < binCountY) {
       // Updating counts -------------------------------------------------------
       double totWeight = 0;
-      for (Value2D value: slice.values) {
-        int bx = PApplet.constrain((int)(value.x / binSizeX), 0, binCountX - 1);  
-        int by = PApplet.constrain((int)(value.y / binSizeY), 0, binCountY - 1);
-        weightSum[bx][by] += value.w;
-        totWeight += value.w;
+      for (int i = 0; i < slice.size(); i++) {
+        int bx = PApplet.constrain((int)(slice.x[i] / binSizeX), 0, binCountX - 1);  
+        int by = PApplet.constrain((int)(slice.y[i] / binSizeY), 0, binCountY - 1);
+        weightSum[bx][by] += slice.w[i];
+        totWeight += slice.w[i];
         sampleCounts[bx]++;
       }
 
@@ -352,9 +352,9 @@ public class Eikosogram extends View {
       values[i] = new ArrayList<Value2D>(); 
     }
     
-    for (Value2D value: slice.values) {
-      int bx = PApplet.constrain((int)(value.x / binSizeX), 0, binCountX - 1);
-      values[bx].add(value);
+    for (int i = 0; i < slice.size(); i++) {
+      int bx = PApplet.constrain((int)(slice.x[i] / binSizeX), 0, binCountX - 1);
+      values[bx].add(new Value2D(slice.x[i], slice.y[i], slice.w[i]));
     }
     
     for (int bx = 0; bx < binCountX; bx++) {
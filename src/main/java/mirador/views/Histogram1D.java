@@ -3,7 +3,6 @@
 package mirador.views;
 
 import miralib.data.DataSlice1D;
-import miralib.data.Value1D;
 import miralib.shannon.BinOptimizer;
 import processing.core.PApplet;
 import processing.core.PGraphics;
@@ -87,7 +86,7 @@ public class Histogram1D extends View {
       binSize = 1.0f / binCount;
     }
     
-    sampleSize = slice.values.size();
+    sampleSize = slice.size();
     
     // Initializing arrays -----------------------------------------------------    
     weightSum = new double[binCount];
@@ -101,10 +100,10 @@ public class Histogram1D extends View {
     if (0 < binCount) {
       // Updating counts -------------------------------------------------------
       double totWeight = 0;
-      for (Value1D value: slice.values) {
-        int bx = PApplet.constrain((int)(value.x / binSize), 0, binCount - 1);  
-        weightSum[bx] += value.w;
-        totWeight += value.w;
+      for (int i = 0; i < slice.size(); i++) {
+        int bx = PApplet.constrain((int)(slice.x[i] / binSize), 0, binCount - 1);  
+        weightSum[bx] += slice.w[i];
+        totWeight += slice.w[i];
       }
         
       maxProb = 0;
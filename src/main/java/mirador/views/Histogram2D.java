@@ -3,8 +3,8 @@
 package mirador.views;
 
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
 import miralib.shannon.BinOptimizer;
+import miralib.shannon.JointCounts;
 import processing.core.PApplet;
 import processing.core.PGraphics;
 
@@ -94,7 +94,7 @@ public class Histogram2D extends View {
       binSizeY = 1.0f / binCountY;
     }
     
-    sampleSize = slice.values.size();
+    sampleSize = slice.size();
     
     // Initializing arrays -----------------------------------------------------    
     weightSum = new double[binCountX][binCountY];
@@ -109,13 +109,9 @@ public class Histogram2D extends View {
     
     if (0 < binCountX && 0 < binCountY) {
       // Updating counts -------------------------------------------------------
-      double totWeight = 0;
-      for (Value2D value: slice.values) {
-        int bx = PApplet.constrain((int)(value.x / binSizeX), 0, binCountX - 1);  
-        int by = PApplet.constrain((int)(value.y / binSizeY), 0, binCountY - 1);  
-        weightSum[bx][by] += value.w;
-        totWeight += value.w;
-      }
+      JointCounts counts = new JointCounts(slice, binCountX, binCountY);
+      weightSum = counts.counts;
+      double totWeight = counts.total;
         
       maxProb = 0;
       // Calculating density ---------------------------------------------------      
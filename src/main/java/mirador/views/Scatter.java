@@ -2,10 +2,7 @@
 
 package mirador.views;
 
-import java.util.ArrayList;
-
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
 import miralib.math.Numbers;
 import processing.core.PApplet;
 import processing.core.PGraphics;
@@ -16,7 +13,9 @@ import processing.core.PGraphics;
  */
 
 public class Scatter extends View {  
-  protected ArrayList<Value2D> points;
+  protected double[] pointsx, pointsy;
+  protected DataSlice2D slice;
+  protected int count;
   
   public Scatter(DataSlice2D slice) {
     super(slice.varx, slice.vary, slice.ranges);
@@ -30,17 +29,17 @@ public class Scatter extends View {
       pg.noStroke();
       float rad = 0;
       int a;
-      int count = PApplet.min(500, points.size());
-      rad = PApplet.map(count, 0, 500, 0.05f, 0.01f);
-      a = (int) PApplet.map(count, 0, 500, 70, 10);
+      int mcount = PApplet.min(500, count);
+      rad = PApplet.map(mcount, 0, 500, 0.05f, 0.01f);
+      a = (int) PApplet.map(mcount, 0, 500, 70, 10);
 
       pg.fill(pg.red(COLOR), pg.green(COLOR), pg.blue(COLOR), a);
-      for (Value2D pt : points) {
-        float px = pg.width * (float) pt.x;
-        float py = pg.height * (float) (1 - pt.y);
+      for (int i = 0; i < count; i++) {
+        float px = pg.width * (float) pointsx[i];
+        float py = pg.height * (float) (1 - pointsy[i]);
         float pw = pg.width * rad;
         float ph = pg.height * rad;
-        if (50000 < points.size()) pg.rect(px - pw / 2, py - ph / 2, pw, ph);
+        if (50000 < count) pg.rect(px - pw / 2, py - ph / 2, pw, ph);
         else pg.ellipse(px, py, pw, ph);
       }
     } else {
@@ -52,17 +51,17 @@ public class Scatter extends View {
   
   public Selection getSelection(double valx, double valy, boolean shift) {
     if (canDraw()) {
-      if (points.size() < 500) {
-        int count = PApplet.min(500, points.size());
-        float rad = PApplet.map(count, 0, 500, 0.05f, 0.01f);
+      if (count < 500) {
+        int mcount = PApplet.min(500, count);
+        float rad = PApplet.map(mcount, 0, 500, 0.05f, 0.01f);
 
-        for (Value2D pt : points) {
-          float px = (float) pt.x;
-          float py = 1 - (float) (pt.y);
+        for (int i = 0; i < count; i++) {
+          float px = (float) pointsx[i];
+          float py = 1 - (float) (pointsy[i]);
           if (PApplet.dist((float) valx, (float) valy, px, py) < rad) {
             Selection sel = new Selection(px, py, rad, rad);
             sel.isEllipse = true;
-            sel.setLabel(pt.label);
+            sel.setLabel(slice.getLabel(i));
             return sel;
           }
         }
@@ -86,19 +85,23 @@ public class Scatter extends View {
     float dx = (float)(1.0d / varx.getCount(ranges));
     float dy = (float)(1.0d / vary.getCount(ranges)); 
     
-    points = new ArrayList<Value2D>();
-    for (Value2D val: slice.values) {
-      Value2D pt = new Value2D(val);
-      pt.label = val.label;
+    count = slice.size();
+    pointsx = new double[count];
+    pointsy = new double[count];
+    this.slice = slice;
+    for (int i = 0; i < count; i++) {
+      double x = slice.x[i];
+      double y = slice.y[i];
       if (varx.categorical()) {
-        pt.x += (1 - 2 * Numbers.random()) * 0.25f * dx;
-        pt.x = PApplet.map((float)pt.x, 0, 1, dx/2, 1 - dx/2);
+        x += (1 - 2 * Numbers.random()) * 0.25f * dx;
+        x = PApplet.map((float)x, 0, 1, dx/2, 1 - dx/2);
       }
       if (vary.categorical()) {
-        pt.y += (float)(1 - 2 * Numbers.random()) * 0.25f * dy;
-        pt.y = PApplet.map((float)pt.y, 0, 1, dy/2, 1 - dy/2);
+        y += (float)(1 - 2 * Numbers.random()) * 0.25f * dy;
+        y = PApplet.map((float)y, 0, 1, dy/2, 1 - dy/2);
       }      
-      points.add(pt);
+      pointsx[i] = x;
+      pointsy[i] = y;
     }    
   }
 }
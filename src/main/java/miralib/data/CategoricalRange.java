@@ -4,10 +4,11 @@ package miralib.data;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 
 import miralib.math.Numbers;
-import processing.data.TableRow;
 
 /**
  * Range for a categorical variable (a set of categories).
@@ -17,6 +18,11 @@ import processing.data.TableRow;
 public class CategoricalRange extends Range {
   protected ArrayList<String> catset;
   
+  // Rank of each category code in the data, cached for the last array of 
+  // categories it was requested for. The lookup is replaced as a whole, so 
+  // the threads reading it don't need to lock.
+  protected volatile RankLookup ranks;
+  
   public CategoricalRange(Variable var) {
     super(var);
     catset = new ArrayList<String>();
@@ -47,6 +53,7 @@ public class CategoricalRange extends Range {
         catset.clear();
         catset.addAll(values);        
       }
+      clearRanks();
     }
   }
   
@@ -69,12 +76,14 @@ public class CategoricalRange extends Range {
   
   public void reset() {
     catset.clear();
+    clearRanks();
   }
   
-  public void update(TableRow row) {    
-    String value = row.getString(var.index);
+  public void update(DataSource data, int row) {    
+    String value = ((CategoricalVariable)var).getCategory(data, row);
     if (catset.indexOf(value) == -1) {   
       catset.add(value);
+      clearRanks();
     }
   }  
   
@@ -110,9 +119,83 @@ public class CategoricalRange extends Range {
     return new ArrayList<String>(catset);
   }  
   
-  public boolean inside(TableRow row) {
-    String value = row.getString(var.index);
-    return value != null && -1 < catset.indexOf(value);
+  public boolean inside(DataSource data, int row) {
+    int code = data.getIntColumn(var.index)[row];
+    return 0 <= code && -1 < getRanks(data.getCategories(var.index))[code];
+  }
+  
+  public int select(DataSource data, int[] rows, int count) {
+    int[] column = data.getIntColumn(var.index);
+    int[] ranks = getRanks(data.getCategories(var.index));
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      int r = rows[i];
+      int code = column[r];
+      if (0 <= code && -1 < ranks[code]) rows[n++] = r;
+    }
+    return n;
+  }
+  
+  protected int inside(DataSource data, Object blocks, int block) {
+    BitSet present = ((BitSet[])blocks)[block];
+    int[] ranks = getRanks(data.getCategories(var.index));
+    boolean some = false;
+    boolean all = !present.get(0);
+    for (int i = present.nextSetBit(1); i >= 0; i = present.nextSetBit(i + 1)) {
+      if (-1 < ranks[i - 1]) some = true;
+      else all = false;
+    }
+    return all ? ALL_INSIDE : (some ? SOME_INSIDE : NONE_INSIDE);
+  }
+  
+  /**
+   * Returns the lookup table from category codes to ranks in this range, 
+   * where the ranks follow the order of the categories in the variable's 
+   * full range, same as getRank(value, supr). Codes of categories not in this 
+   * range are mapped to -1. 
+   */
+  public int[] getRanks(String[] categories) {
+    RankLookup lookup = ranks;
+    if (lookup != null && lookup.categories == categories) return lookup.ranks;
+    return buildRanks(categories);
+  }
+  
+  synchronized protected int[] buildRanks(String[] categories) {
+    RankLookup lookup = ranks;
+    if (lookup == null || lookup.categories != categories) {
+      HashMap<String, Integer> rankMap = new HashMap<String, Integer>();
+      if (var.range == this) {
+        for (int i = 0; i < catset.size(); i++) rankMap.put(catset.get(i), i);
+      } else {
+        HashSet<String> members = new HashSet<String>(catset); 
+        int rank = 0;
+        for (String cat: var.range.getValues()) {
+          if (members.contains(cat)) rankMap.put(cat, rank++);
+        }
+      }
+      int[] ranks = new int[categories.length];
+      for (int code = 0; code < categories.length; code++) {
+        Integer rank = rankMap.get(categories[code]);
+        ranks[code] = rank == null ? -1 : rank;
+      }
+      lookup = new RankLookup(categories, ranks);
+      this.ranks = lookup;
+    }
+    return lookup.ranks;
+  }
+  
+  synchronized protected void clearRanks() {
+    ranks = null;
+  }
+  
+  static protected class RankLookup {
+    final String[] categories;
+    final int[] ranks;
+    
+    RankLookup(String[] categories, int[] ranks) {
+      this.categories = categories;
+      this.ranks = ranks;
+    }
   }
 
   public double snap(double value) {
@@ -7,7 +7,6 @@ import java.util.HashMap;
 
 import miralib.utils.Log;
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * Subclass of Variable to represent a categorical variable.
@@ -51,7 +50,20 @@ public class CategoricalVariable extends Variable {
   }  
   
   public void initRange(DataSource data) {
-    super.initRange(data);
+    range.reset();
+    String[] categories = data.getCategories(index);
+    Object bounds = data.getColumnBounds(index);
+    if (bounds == null) {
+      int[] count = new int[1];
+      bounds = ColumnTable.computeBounds(data, index, count);
+      missingCount = count[0];
+    }
+    ArrayList<String> values = new ArrayList<String>();
+    for (int code: (int[])bounds) {
+      String cat = categories[code];
+      if (cat != null && !cat.equals(missingString)) values.add(cat);
+    }
+    range.set(values);
     for (String cat: range.getValues()) {
       aliases.put(cat, cat);
     }
@@ -101,10 +113,15 @@ public class CategoricalVariable extends Variable {
     return false;
   }
   
-  public boolean missing(TableRow row) {
-    String value = row.getString(index);
+  public boolean missing(DataSource data, int row) {
+    String value = getCategory(data, row);
     return value == null || value.equals(missingString);
   }
+  
+  public String getCategory(DataSource data, int row) {
+    int code = data.getIntColumn(index)[row];
+    return code < 0 ? null : data.getCategories(index)[code];
+  }
 
   public double getValue(String str, boolean normalized) {
     int rank = range.getRank(str);
@@ -115,24 +132,34 @@ public class CategoricalVariable extends Variable {
     }    
   }  
     
-  public double getValue(TableRow row, Range sel, boolean normalized) {    
-    String value = row.getString(index);
-    if (value == null) return -1;
-    int rank = sel == null ? range.getRank(value) : sel.getRank(value, range);  
-        
+  public double getValue(DataSource data, int row, Range sel, boolean normalized) {    
+    int code = data.getIntColumn(index)[row];
+    if (code < 0) return -1;
+    Range crange = sel == null ? range : sel;
+    int rank = ((CategoricalRange)crange).getRanks(data.getCategories(index))[code];
+    
     if (normalized) {
-      if (sel == null) {
-        return range.normalize(rank);              
-      } else {
-        return sel.normalize(rank);  
-      }
+      return crange.normalize(rank);
     } else {
       return rank;
     }
   } 
   
-  public String formatValue(TableRow row) {
-    String value = row.getString(index);    
+  public void getValues(DataSource data, int[] rows, int count, Range sel, 
+                        double[] values) {
+    Range crange = sel == null ? range : sel;
+    int[] ranks = ((CategoricalRange)crange).getRanks(data.getCategories(index));
+    double min = crange.getMin();
+    double max = crange.getMax();
+    int[] column = data.getIntColumn(index);
+    for (int i = 0; i < count; i++) {
+      int code = column[rows[i]];
+      values[i] = code < 0 ? -1 : Range.normalize(ranks[code], min, max);
+    }
+  }
+  
+  public String formatValue(DataSource data, int row) {
+    String value = getCategory(data, row);
     String alias = aliases.get(value);
     return alias == null ? "missing" : alias;
   }   
@@ -202,7 +229,7 @@ public class CategoricalVariable extends Variable {
     return str;       
   }  
   
-  protected double getWeightImpl(TableRow row) {
+  protected double getWeightImpl(DataSource data, int row) {
     String msg = "Weight variable " + name + " (" + alias + ") is not numeric";
     Log.error(msg, new RuntimeException(msg));
     return 0;
@@ -0,0 +1,884 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import processing.core.PApplet;
+import processing.data.Table;
+
+/**
+ * Parser for tsv and csv files that uses all the available cores. The file is
+ * split into chunks of bytes that start and end on line boundaries, each chunk
+ * is parsed by a separate thread directly into typed column arrays, and the
+ * arrays are then concatenated in the order of the chunks. The values are
+ * converted following the same rules as Processing's Table, so the resulting
+ * data is identical to what MiraTable would load from the same file. When a
+ * projection is set, the columns outside of it are skipped by the tokenizer
+ * and never stored.
+ *
+ */
+
+public class ChunkedParser {
+  final static protected Charset UTF8 = Charset.forName("UTF-8");
+  final static protected int MIN_CHUNK_SIZE = 1 << 20;
+  final static protected int MAX_CHUNK_SIZE = 1 << 23;
+  final static protected int SCAN_BUFFER_SIZE = 1 << 16;
+
+  // Code of the category cells in rows that are shorter than the table,
+  // Processing leaves them at 0 so they end up in the first category.
+  final static protected int SHORT_CATEGORY = -2;
+
+  protected File file;
+  protected boolean header;
+  protected boolean csv;
+  protected String missingString;
+  protected int[] columnTypes;
+  protected int chunkSize;
+  protected Set<String> projection;
+
+  protected String[] titles;
+  protected boolean[] keep;
+
+  protected long totalBytes;
+  protected AtomicLong parsedBytes;
+
+  public ChunkedParser(File file, String options, String missing) {
+    this.file = file;
+    this.missingString = missing;
+    columnTypes = new int[0];
+    parsedBytes = new AtomicLong(0);
+    String ext = file.getName().toLowerCase();
+    csv = ext.endsWith(".csv");
+    if (options != null) {
+      for (String opt: PApplet.trim(PApplet.split(options, ','))) {
+        if (opt.equals("header")) header = true;
+        else if (opt.equals("csv")) csv = true;
+        else if (opt.equals("tsv")) csv = false;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the file can be read with this parser, which handles
+   * uncompressed tsv and csv files.
+   */
+  static public boolean supports(String filename, String options) {
+    String name = filename.toLowerCase();
+    if (name.endsWith(".gz")) return false;
+    boolean text = name.endsWith(".tsv") || name.endsWith(".csv");
+    if (options != null) {
+      for (String opt: PApplet.trim(PApplet.split(options, ','))) {
+        if (opt.equals("tsv") || opt.equals("csv")) text = true;
+        else if (opt.equals("bin") || opt.equals("ods")) return false;
+      }
+    }
+    return text;
+  }
+
+  /**
+   * Takes the types of the columns from the dictionary, the same way as
+   * MiraTable.setColumnTypes() does.
+   */
+  public void setColumnTypes(Table dictionary) {
+    columnTypes = new int[dictionary.getRowCount()];
+    if (dictionary.getColumnCount() > 1) {
+      String[] typeNames = dictionary.getStringColumn(1);
+      for (int col = 0; col < columnTypes.length; col++) {
+        columnTypes[col] = MiraTable.parseColumnType(col, typeNames[col]);
+      }
+    }
+  }
+
+  /**
+   * Restricts the parsing to the columns with the given titles, the rest are
+   * not included in the resulting table. Requires the file to have a header.
+   */
+  public void setProjection(Set<String> names) {
+    projection = names;
+  }
+
+  /**
+   * Reads only the titles in the header of the file, or returns null if the
+   * file has no header.
+   */
+  public String[] readTitles() throws IOException {
+    if (!header) return null;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long begin = hasBOM(channel) ? 3 : 0;
+      return parseHeader(channel, begin, channel.size()).titles;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Fraction of the file that has been parsed so far.
+   */
+  public float getProgress() {
+    return totalBytes == 0 ? 0 : (float)((double)parsedBytes.get() / totalBytes);
+  }
+
+  /**
+   * Parses the file, converting the string and category columns that hold
+   * dates into date columns when requested.
+   */
+  public ColumnTable parse(boolean dates) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    int proc = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(proc);
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      long begin = hasBOM(channel) ? 3 : 0;
+      totalBytes = size - begin;
+      titles = null;
+      keep = null;
+
+      boolean titled = header;
+      if (header && projection != null) {
+        // The titles are needed before parsing the rest of the file in order
+        // to know which columns to skip. If the header comes with rows, the
+        // lines are not terminated by \n and the projection is ignored.
+        long end = nextLine(channel, begin, size, false);
+        Chunk first = parseHeader(channel, begin, size);
+        if (first.titles != null && first.rowCount == 0) {
+          titles = first.titles;
+          keep = projectedColumns(titles);
+          parsedBytes.addAndGet(end - begin);
+          begin = end;
+          titled = false;
+        }
+      }
+
+      long[] bounds = splitChunks(channel, begin, size, proc, pool);
+      Chunk[] chunks = parseChunks(channel, bounds, titled, pool);
+      if (chunks == null) {
+        // A quoted field crossed the end of a chunk, which can only happen
+        // with malformed files, so the file is parsed again one chunk after
+        // the other, each starting where the last record of the previous one
+        // really ended
+        chunks = parseSequential(channel, begin, size, titled);
+      }
+      if (titled) titles = chunks[0].titles;
+
+      ColumnTable table = merge(chunks, pool);
+      if (dates) detectDates(table);
+      return table;
+    } finally {
+      pool.shutdown();
+      raf.close();
+    }
+  }
+
+  protected Chunk parseHeader(FileChannel channel, long begin, long size)
+      throws IOException {
+    Chunk chunk = new Chunk(true, true);
+    chunk.parse(channel, begin, nextLine(channel, begin, size, false));
+    return chunk;
+  }
+
+  protected boolean[] projectedColumns(String[] titles) {
+    boolean[] kept = new boolean[titles.length];
+    for (int col = 0; col < titles.length; col++) {
+      kept[col] = projection.contains(titles[col]);
+    }
+    return kept;
+  }
+
+  protected boolean hasBOM(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(3);
+    channel.read(buffer, 0);
+    return buffer.position() == 3 && (buffer.get(0) & 0xFF) == 0xEF &&
+           (buffer.get(1) & 0xFF) == 0xBB && (buffer.get(2) & 0xFF) == 0xBF;
+  }
+
+  /**
+   * Returns the offsets where the chunks begin, plus the end of the file.
+   * Each chunk starts right after a line break, and for csv files also
+   * outside of any quoted field, which is determined by the parity of the
+   * number of quotes that precede the line break.
+   */
+  protected long[] splitChunks(final FileChannel channel, long begin, long end,
+                               int proc, ExecutorService pool) throws IOException {
+    long size = chunkSize;
+    if (size <= 0) {
+      size = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, (end - begin) / (4 * proc)));
+    }
+    int count = (int)Math.max(1, (end - begin + size - 1) / size);
+    final long[] nominal = new long[count + 1];
+    for (int i = 0; i < count; i++) nominal[i] = begin + i * size;
+    nominal[count] = end;
+
+    boolean[] odd = new boolean[count];
+    if (csv) {
+      ArrayList<Future<Boolean>> counts = new ArrayList<Future<Boolean>>();
+      for (int i = 0; i < count; i++) {
+        final int chunk = i;
+        counts.add(pool.submit(new Callable<Boolean>() {
+          public Boolean call() throws IOException {
+            return oddQuotes(channel, nominal[chunk], nominal[chunk + 1]);
+          }
+        }));
+      }
+      boolean parity = false;
+      for (int i = 0; i < count; i++) {
+        odd[i] = parity;
+        parity ^= get(counts.get(i));
+      }
+    }
+
+    long[] bounds = new long[count + 1];
+    int n = 0;
+    bounds[n++] = begin;
+    for (int i = 1; i < count; i++) {
+      long pos = Math.max(nominal[i], bounds[n - 1]);
+      boolean quoted = csv && (odd[i] ^ oddQuotes(channel, nominal[i], pos));
+      long next = nextLine(channel, pos, end, quoted);
+      if (bounds[n - 1] < next && next < end) bounds[n++] = next;
+    }
+    bounds[n++] = end;
+    return Arrays.copyOf(bounds, n);
+  }
+
+  protected boolean oddQuotes(FileChannel channel, long from, long to)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    boolean odd = false;
+    long pos = from;
+    while (pos < to) {
+      buffer.clear();
+      if (to - pos < buffer.capacity()) buffer.limit((int)(to - pos));
+      int len = channel.read(buffer, pos);
+      if (len <= 0) break;
+      byte[] bytes = buffer.array();
+      for (int i = 0; i < len; i++) {
+        if (bytes[i] == '"') odd = !odd;
+      }
+      pos += len;
+    }
+    return odd;
+  }
+
+  /**
+   * Returns the position after the first line break that comes after pos,
+   * skipping the breaks inside quoted fields if csv.
+   */
+  protected long nextLine(FileChannel channel, long pos, long end, boolean quoted)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    if (0 < pos) {
+      // The position might already be at the start of a line
+      buffer.limit(1);
+      channel.read(buffer, pos - 1);
+      if (buffer.get(0) == '\n' && !quoted) return pos;
+    }
+    while (pos < end) {
+      buffer.clear();
+      int len = channel.read(buffer, pos);
+      if (len <= 0) break;
+      byte[] bytes = buffer.array();
+      for (int i = 0; i < len; i++) {
+        if (csv && bytes[i] == '"') quoted = !quoted;
+        else if (bytes[i] == '\n' && !quoted) return pos + i + 1;
+      }
+      pos += len;
+    }
+    return end;
+  }
+
+  /**
+   * Parses all the chunks in parallel, returns null if any of them ends in
+   * the middle of a record.
+   */
+  protected Chunk[] parseChunks(final FileChannel channel, final long[] bounds,
+                                final boolean titled, ExecutorService pool)
+      throws IOException {
+    int count = bounds.length - 1;
+    ArrayList<Future<Chunk>> futures = new ArrayList<Future<Chunk>>();
+    for (int i = 0; i < count; i++) {
+      final int index = i;
+      futures.add(pool.submit(new Callable<Chunk>() {
+        public Chunk call() throws IOException {
+          Chunk chunk = new Chunk(index == 0 && titled, index == bounds.length - 2);
+          chunk.parse(channel, bounds[index], bounds[index + 1]);
+          parsedBytes.addAndGet(bounds[index + 1] - bounds[index]);
+          return chunk;
+        }
+      }));
+    }
+    Chunk[] chunks = new Chunk[count];
+    for (int i = 0; i < count; i++) {
+      chunks[i] = get(futures.get(i));
+      if (chunks[i].overrun) return null;
+    }
+    return chunks;
+  }
+
+  /**
+   * Parses the file in consecutive chunks of about MAX_CHUNK_SIZE bytes. A
+   * chunk that ends inside a quoted field keeps only its complete records,
+   * and the next chunk starts at the beginning of the incomplete one, so 
+   * only one chunk is held in memory as text at any time.
+   */
+  protected Chunk[] parseSequential(FileChannel channel, long begin, long end,
+                                    boolean titled) throws IOException {
+    parsedBytes.set(0);
+    ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+    long window = 0 < chunkSize ? chunkSize : MAX_CHUNK_SIZE;
+    long pos = begin;
+    while (pos < end) {
+      long to = nextLine(channel, Math.min(end, pos + window), end, false);
+      if (Integer.MAX_VALUE < to - pos) {
+        throw new IOException("Found a quoted record that is too long.");
+      }
+      Chunk chunk = new Chunk(chunks.isEmpty() && titled, to == end);
+      chunk.parse(channel, pos, to);
+      long next = to;
+      if (chunk.overrun) {
+        next = chunk.resume;
+        if (next == pos) {
+          // Not even one record fits in the chunk, trying a larger one
+          window *= 2;
+          continue;
+        }
+      }
+      chunks.add(chunk);
+      parsedBytes.addAndGet(next - pos);
+      window = 0 < chunkSize ? chunkSize : MAX_CHUNK_SIZE;
+      pos = next;
+    }
+    if (chunks.isEmpty()) chunks.add(new Chunk(titled, true));
+    return chunks.toArray(new Chunk[chunks.size()]);
+  }
+
+  /**
+   * Returns the position after the first breaks line breaks (\n or \r 
+   * bytes) that come after pos. These bytes are never part of multi-byte 
+   * characters, so they match the line breaks in the decoded text.
+   */
+  protected long skipBreaks(FileChannel channel, long pos, long end, int breaks)
+      throws IOException {
+    if (breaks == 0) return pos;
+    ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+    int count = 0;
+    while (pos < end) {
+      buffer.clear();
+      int len = channel.read(buffer, pos);
+      if (len <= 0) break;
+      byte[] bytes = buffer.array();
+      for (int i = 0; i < len; i++) {
+        if ((bytes[i] == '\n' || bytes[i] == '\r') && ++count == breaks) {
+          return pos + i + 1;
+        }
+      }
+      pos += len;
+    }
+    return end;
+  }
+
+  /**
+   * Concatenates the columns of all the chunks, the category values are
+   * numbered in the order they first appear in the file. The columns that
+   * were skipped are left out.
+   */
+  protected ColumnTable merge(final Chunk[] chunks, ExecutorService pool)
+      throws IOException {
+    final int[] offsets = new int[chunks.length + 1];
+    int count = columnTypes.length;
+    for (int i = 0; i < chunks.length; i++) {
+      offsets[i + 1] = offsets[i] + chunks[i].rowCount;
+      count = Math.max(count, chunks[i].columns.length);
+    }
+    if (titles != null) count = Math.max(count, titles.length);
+    if (keep != null) count = keep.length;
+
+    // Indices in the file of the columns in the table
+    final int[] source = new int[count];
+    int kept = 0;
+    for (int col = 0; col < count; col++) {
+      if (keep == null || keep[col]) source[kept++] = col;
+    }
+    count = kept;
+
+    final ColumnTable table = new ColumnTable();
+    table.missingString = missingString;
+    table.rowCount = offsets[chunks.length];
+    table.columnTitles = new String[count];
+    table.columnTypes = new int[count];
+    table.columns = new Object[count];
+    table.categories = new String[count][];
+    table.missingRows = new BitSet[count];
+    table.columnIndices = new HashMap<String, Integer>();
+    for (int col = 0; col < count; col++) {
+      int scol = source[col];
+      String title = titles != null && scol < titles.length ? titles[scol] : null;
+      table.columnTitles[col] = title;
+      table.columnTypes[col] = scol < columnTypes.length ? columnTypes[scol] : Table.STRING;
+      if (title != null) table.columnIndices.put(title, col);
+    }
+
+    ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+    for (int i = 0; i < count; i++) {
+      final int col = i;
+      futures.add(pool.submit(new Callable<Object>() {
+        public Object call() {
+          int scol = source[col];
+          int type = table.columnTypes[col];
+          Object column = allocate(type, table.rowCount);
+          if (type == Table.CATEGORY) {
+            table.categories[col] = mergeCategories(chunks, offsets, scol, (int[])column);
+          } else {
+            for (int i = 0; i < chunks.length; i++) {
+              Object data = chunks[i].getColumn(scol);
+              if (data != null) {
+                System.arraycopy(data, 0, column, offsets[i], chunks[i].rowCount);
+              }
+            }
+          }
+          table.columns[col] = column;
+          return column;
+        }
+      }));
+    }
+    for (Future<Object> future: futures) get(future);
+    return table;
+  }
+
+  protected String[] mergeCategories(Chunk[] chunks, int[] offsets, int col,
+                                     int[] codes) {
+    HashMap<String, Integer> index = new HashMap<String, Integer>();
+    ArrayList<String> values = new ArrayList<String>();
+    Arrays.fill(codes, SHORT_CATEGORY);
+    for (int i = 0; i < chunks.length; i++) {
+      int[] local = (int[])chunks[i].getColumn(col);
+      if (local == null) continue;
+      ArrayList<String> localValues = chunks[i].categoryValues[col];
+      int[] recode = new int[localValues.size()];
+      for (int code = 0; code < recode.length; code++) {
+        String value = localValues.get(code);
+        Integer global = index.get(value);
+        if (global == null) {
+          global = values.size();
+          index.put(value, global);
+          values.add(value);
+        }
+        recode[code] = global;
+      }
+      for (int row = 0; row < chunks[i].rowCount; row++) {
+        int code = local[row];
+        codes[offsets[i] + row] = 0 <= code ? recode[code] : code;
+      }
+    }
+    int shortCode = values.isEmpty() ? -1 : 0;
+    for (int row = 0; row < codes.length; row++) {
+      if (codes[row] == SHORT_CATEGORY) codes[row] = shortCode;
+    }
+    return values.toArray(new String[values.size()]);
+  }
+
+  /**
+   * Converts the string and category columns where most of the first values
+   * are dates, using the same test as MiraTable.isDateColumn().
+   */
+  protected void detectDates(ColumnTable table) {
+    for (int col = 0; col < table.getColumnCount(); col++) {
+      int type = table.getColumnType(col);
+      if (type != Table.STRING && type != Table.CATEGORY) continue;
+      int totCount = 0;
+      int dateCount = 0;
+      for (int row = 0; row < table.getRowCount(); row++) {
+        String value = table.getString(row, col);
+        if (value == null || value.equals(missingString)) continue;
+        if (MiraTable.supportedDateString(value)) dateCount++;
+        totCount++;
+        if (totCount == 10) break;
+      }
+      float frac = (float)dateCount / (float)totCount;
+      if (0.5f < frac) {
+        String[] values = new String[table.getRowCount()];
+        for (int row = 0; row < values.length; row++) {
+          values[row] = table.getString(row, col);
+        }
+        BitSet missing = new BitSet(values.length);
+        table.columns[col] = DateVariable.parse(values, missingString, missing);
+        table.missingRows[col] = missing;
+        table.categories[col] = null;
+        table.columnTypes[col] = MiraTable.DATE;
+      }
+    }
+  }
+
+  static protected Object allocate(int type, int rows) {
+    if (type == Table.INT || type == Table.CATEGORY) {
+      return new int[rows];
+    } else if (type == Table.LONG) {
+      return new long[rows];
+    } else if (type == Table.FLOAT) {
+      return new float[rows];
+    } else if (type == Table.DOUBLE) {
+      return new double[rows];
+    } else {
+      return new String[rows];
+    }
+  }
+
+  static protected <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new IOException("Parsing was interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new IOException(cause);
+    }
+  }
+
+
+  protected class Chunk {
+    boolean header;
+    boolean last;
+    boolean overrun;
+    long resume;
+    boolean[] keep;
+    int limit;
+    String[] titles;
+    int rowCount;
+    int capacity;
+    int[] types;
+    Object[] columns;
+    HashMap<String, Integer>[] categoryIndex;
+    ArrayList<String>[] categoryValues;
+    CsvLine csvLine;
+
+    Chunk(boolean header, boolean last) {
+      this.header = header;
+      this.last = last;
+      types = columnTypes;
+      columns = new Object[0];
+      // The header is always parsed in full
+      keep = header ? null : ChunkedParser.this.keep;
+      limit = Integer.MAX_VALUE;
+      if (keep != null) {
+        limit = 0;
+        for (int col = 0; col < keep.length; col++) {
+          if (keep[col]) limit = col + 1;
+        }
+      }
+    }
+
+    boolean kept(int col) {
+      return keep == null || (col < keep.length && keep[col]);
+    }
+
+    Object getColumn(int col) {
+      return col < columns.length ? columns[col] : null;
+    }
+
+    void parse(FileChannel channel, long from, long to) throws IOException {
+      ByteBuffer bytes = ByteBuffer.allocate((int)(to - from));
+      while (bytes.hasRemaining()) {
+        if (channel.read(bytes, from + bytes.position()) < 0) break;
+      }
+      bytes.flip();
+      CharsetDecoder decoder = UTF8.newDecoder()
+                                   .onMalformedInput(CodingErrorAction.REPLACE)
+                                   .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      CharBuffer chars = decoder.decode(bytes);
+      bytes = null;
+      char[] c = chars.array();
+      int end = chars.limit();
+
+      // Each line has one record at most
+      capacity = 1;
+      for (int i = 0; i < end; i++) {
+        if (c[i] == '\n' || (c[i] == '\r' && (i + 1 == end || c[i + 1] != '\n'))) {
+          capacity++;
+        }
+      }
+      initColumns(types.length);
+      if (csv) csvLine = new CsvLine(keep);
+
+      int pos = 0;
+      while (pos < end) {
+        int lineEnd = lineEnd(c, pos, end);
+        int next = nextLine(c, lineEnd, end);
+        if (csv) {
+          String[] pieces = csvLine.handle(c, pos, lineEnd);
+          while (pieces == null) {
+            // Quoted field with line breaks, Processing joins the lines with \n
+            if (next == end) {
+              if (last) throw new IOException("Found a quoted line that wasn't terminated properly.");
+              overrun = true;
+              // Start of the incomplete record in the file
+              int breaks = 0;
+              for (int i = 0; i < pos; i++) {
+                if (c[i] == '\n' || c[i] == '\r') breaks++;
+              }
+              resume = skipBreaks(channel, from, to, breaks);
+              return;
+            }
+            int nextEnd = lineEnd(c, next, end);
+            char[] joined = new char[csvLine.end - csvLine.from + 1 + nextEnd - next];
+            System.arraycopy(csvLine.c, csvLine.from, joined, 0, csvLine.end - csvLine.from);
+            joined[csvLine.end - csvLine.from] = '\n';
+            System.arraycopy(c, next, joined, csvLine.end - csvLine.from + 1, nextEnd - next);
+            next = nextLine(c, nextEnd, end);
+            pieces = csvLine.handle(joined, 0, joined.length);
+          }
+          if (header) {
+            titles = pieces;
+            header = false;
+          } else {
+            int count = Math.min(pieces.length, limit);
+            for (int col = 0; col < count; col++) {
+              if (!kept(col)) continue;
+              ensureColumns(col + 1);
+              set(col, rowCount, pieces[col]);
+            }
+            rowCount++;
+          }
+        } else {
+          if (header) {
+            titles = PApplet.split(new String(c, pos, lineEnd - pos), '\t');
+            header = false;
+          } else {
+            int col = 0;
+            int start = pos;
+            for (int i = pos; i <= lineEnd && col < limit; i++) {
+              if (i == lineEnd || c[i] == '\t') {
+                if (kept(col)) {
+                  ensureColumns(col + 1);
+                  set(col, rowCount, c, start, i);
+                }
+                col++;
+                start = i + 1;
+              }
+            }
+            rowCount++;
+          }
+        }
+        pos = next;
+      }
+    }
+
+    // Same line breaks as BufferedReader.readLine(): \n, \r, or \r\n
+
+    int lineEnd(char[] c, int pos, int end) {
+      while (pos < end && c[pos] != '\n' && c[pos] != '\r') pos++;
+      return pos;
+    }
+
+    int nextLine(char[] c, int lineEnd, int end) {
+      if (lineEnd == end) return end;
+      if (c[lineEnd] == '\r' && lineEnd + 1 < end && c[lineEnd + 1] == '\n') {
+        return lineEnd + 2;
+      }
+      return lineEnd + 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    void initColumns(int count) {
+      int first = columns.length;
+      columns = Arrays.copyOf(columns, count);
+      categoryIndex = Arrays.copyOf(categoryIndex == null ? new HashMap[0] : categoryIndex, count);
+      categoryValues = Arrays.copyOf(categoryValues == null ? new ArrayList[0] : categoryValues, count);
+      for (int col = first; col < count; col++) {
+        if (!kept(col)) continue;
+        int type = getType(col);
+        columns[col] = allocate(type, capacity);
+        if (type == Table.CATEGORY) {
+          Arrays.fill((int[])columns[col], SHORT_CATEGORY);
+          categoryIndex[col] = new HashMap<String, Integer>();
+          categoryValues[col] = new ArrayList<String>();
+        }
+      }
+    }
+
+    void ensureColumns(int count) {
+      if (columns.length < count) initColumns(count);
+    }
+
+    int getType(int col) {
+      return col < types.length ? types[col] : Table.STRING;
+    }
+
+    // The values are converted with the same results as Table.setRowCol()
+
+    void set(int col, int row, char[] c, int start, int end) {
+      int type = getType(col);
+      if (type == Table.INT) {
+        ((int[])columns[col])[row] = NumberScanner.parseInt(c, start, end, NumericalVariable.MISSING_INT);
+      } else if (type == Table.LONG) {
+        ((long[])columns[col])[row] = NumberScanner.parseLong(c, start, end, NumericalVariable.MISSING_LONG);
+      } else if (type == Table.FLOAT) {
+        ((float[])columns[col])[row] = NumberScanner.parseFloat(c, start, end, NumericalVariable.MISSING_FLOAT);
+      } else if (type == Table.DOUBLE) {
+        ((double[])columns[col])[row] = NumberScanner.parseDouble(c, start, end, NumericalVariable.MISSING_DOUBLE);
+      } else {
+        set(col, row, new String(c, start, end - start));
+      }
+    }
+
+    void set(int col, int row, String piece) {
+      int type = getType(col);
+      if (type == Table.STRING) {
+        ((String[])columns[col])[row] = piece;
+      } else if (type == Table.INT) {
+        ((int[])columns[col])[row] = NumberScanner.parseInt(piece, NumericalVariable.MISSING_INT);
+      } else if (type == Table.LONG) {
+        ((long[])columns[col])[row] = NumberScanner.parseLong(piece, NumericalVariable.MISSING_LONG);
+      } else if (type == Table.FLOAT) {
+        ((float[])columns[col])[row] = NumberScanner.parseFloat(piece, NumericalVariable.MISSING_FLOAT);
+      } else if (type == Table.DOUBLE) {
+        ((double[])columns[col])[row] = NumberScanner.parseDouble(piece, NumericalVariable.MISSING_DOUBLE);
+      } else if (type == Table.CATEGORY) {
+        int code = -1;
+        if (!piece.equals(missingString)) {
+          Integer index = categoryIndex[col].get(piece);
+          if (index == null) {
+            index = categoryValues[col].size();
+            categoryIndex[col].put(piece, index);
+            categoryValues[col].add(piece);
+          }
+          code = index;
+        }
+        ((int[])columns[col])[row] = code;
+      }
+    }
+  }
+
+
+  /**
+   * Splits a line of a csv file into its fields, replicating the handling of
+   * quotes in Processing's Table.
+   */
+  static protected class CsvLine {
+    boolean[] keep;
+    char[] c;
+    int from;
+    int end;
+    int start;
+    String[] pieces;
+    int pieceCount;
+
+    /**
+     * The fields of the columns that are not kept are left as null.
+     */
+    CsvLine(boolean[] keep) {
+      this.keep = keep;
+    }
+
+    /**
+     * Returns the fields, or null if the line ends inside a quoted field and
+     * needs to be joined with the next one.
+     */
+    String[] handle(char[] c, int from, int end) {
+      this.c = c;
+      this.from = from;
+      this.end = end;
+      start = from;
+      pieceCount = 0;
+
+      int count = 1;
+      boolean quote = false;
+      for (int i = from; i < end; i++) {
+        if (!quote && c[i] == ',') count++;
+        else if (c[i] == '"') quote = !quote;
+      }
+      pieces = new String[count];
+      while (start < end) {
+        if (!ingest()) return null;
+      }
+      for (int i = pieceCount; i < pieces.length; i++) pieces[i] = "";
+      return pieces;
+    }
+
+    void addPiece(int start, int stop, boolean quotes) {
+      if (keep != null && (keep.length <= pieceCount || !keep[pieceCount])) {
+        pieces[pieceCount++] = null;
+      } else if (quotes) {
+        StringBuilder piece = new StringBuilder(stop - start);
+        for (int i = start; i < stop; i++) {
+          if (c[i] == '"' && ++i == stop) break;
+          piece.append(c[i]);
+        }
+        pieces[pieceCount++] = piece.toString();
+      } else {
+        pieces[pieceCount++] = new String(c, start, stop - start);
+      }
+    }
+
+    boolean ingest() {
+      boolean hasEscapedQuotes = false;
+      boolean quoted = c[start] == '"';
+      if (quoted) start++;
+      int i = start;
+      while (i < end) {
+        if (c[i] == '"') {
+          if (quoted) {
+            if (i == end - 1) {
+              addPiece(start, i, hasEscapedQuotes);
+              start = end;
+              return true;
+            } else if (c[i + 1] == '"') {
+              hasEscapedQuotes = true;
+              i += 2;
+            } else if (c[i + 1] == ',') {
+              addPiece(start, i, hasEscapedQuotes);
+              start = i + 2;
+              return true;
+            } else {
+              i++;
+            }
+          } else {
+            if (i == end - 1) {
+              throw new RuntimeException("Unterminated quote at end of line");
+            } else if (c[i + 1] == '"') {
+              hasEscapedQuotes = true;
+              i += 2;
+            } else {
+              throw new RuntimeException("Unterminated quoted field mid-line");
+            }
+          }
+        } else if (!quoted && c[i] == ',') {
+          addPiece(start, i, hasEscapedQuotes);
+          start = i + 1;
+          return true;
+        } else if (!quoted && i == end - 1) {
+          addPiece(start, end, hasEscapedQuotes);
+          start = end;
+          return true;
+        } else {
+          i++;
+        }
+      }
+      if (quoted) return false;
+      throw new RuntimeException("Unexpected end of csv line");
+    }
+  }
+}
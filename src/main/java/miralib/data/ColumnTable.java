@@ -0,0 +1,655 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.joda.time.DateTime;
+
+import processing.data.Table;
+import processing.data.TableRow;
+
+/**
+ * Column-oriented data source. Each column is stored in a typed primitive
+ * array, so slices and ranges can be computed by looping over plain arrays
+ * instead of going through one TableRow object per cell.
+ *
+ */
+
+public class ColumnTable implements DataSource {
+  final static public int BLOCK_SIZE = 1 << 16;
+  
+  protected String missingString;
+  protected String[] columnTitles;
+  protected int[] columnTypes;
+  protected Object[] columns;
+  protected String[][] categories;
+  protected BitSet[] missingRows;
+  protected Object[] blockBounds;
+  protected int rowCount;
+
+  protected HashMap<String, Integer> columnIndices;
+
+  /**
+   * Takes the columns from the parsed table, without copying the arrays
+   * holding the numerical and string data.
+   */
+  protected ColumnTable() { }
+
+  public ColumnTable(MiraTable table) {
+    missingString = table.getMissingString();
+    rowCount = table.getRowCount();
+    int count = table.getColumnCount();
+    columnTitles = new String[count];
+    columnTypes = new int[count];
+    columns = new Object[count];
+    categories = new String[count][];
+    missingRows = new BitSet[count];
+    columnIndices = new HashMap<String, Integer>();
+    for (int col = 0; col < count; col++) {
+      String title = table.getColumnTitle(col);
+      int type = table.getColumnType(col);
+      columnTitles[col] = title;
+      columnTypes[col] = type;
+      if (title != null) columnIndices.put(title, col);
+      if (type == Table.INT) {
+        columns[col] = table.getIntColumn(col);
+      } else if (type == Table.LONG) {
+        columns[col] = table.getLongColumn(col);
+      } else if (type == Table.FLOAT) {
+        columns[col] = table.getFloatColumn(col);
+      } else if (type == Table.DOUBLE) {
+        columns[col] = table.getDoubleColumn(col);
+      } else if (type == Table.CATEGORY) {
+        int[] codes = table.getIntColumn(col);
+        categories[col] = encodeCategories(codes, table.getCategories(col));
+        columns[col] = codes;
+      } else if (type == MiraTable.DATE) {
+        columns[col] = table.getLongColumn(col);
+        missingRows[col] = table.getMissingRows(col);
+      } else {
+        columns[col] = table.getStringColumn(col);
+      }
+    }
+  }
+  
+  /**
+   * Removes the missing string and the unused entries from the categories 
+   * parsed by the table, updating the codes accordingly. Missing values end 
+   * up with a code of -1.
+   */
+  protected String[] encodeCategories(int[] codes, String[] values) {
+    int[] recode = new int[values.length];
+    ArrayList<String> used = new ArrayList<String>();
+    boolean identity = true;
+    for (int code = 0; code < values.length; code++) {
+      String value = values[code];
+      if (value == null || value.equals(missingString)) {
+        recode[code] = -1;
+      } else {
+        recode[code] = used.size();
+        used.add(value);
+      }
+      identity &= recode[code] == code;
+    }
+    if (!identity) {
+      for (int row = 0; row < codes.length; row++) {
+        int code = codes[row];
+        codes[row] = 0 <= code && code < recode.length ? recode[code] : -1;
+      }
+    }
+    return used.toArray(new String[used.size()]);
+  }
+
+  public String getMissingString() {
+    return missingString;
+  }
+
+  public int getColumnCount() {
+    return columnTypes.length;
+  }
+
+  public String getColumnTitle(int col) {
+    return columnTitles[col];
+  }
+
+  public int getColumnIndex(String columnName) {
+    Integer col = columnIndices.get(columnName);
+    return col == null ? -1 : col;
+  }
+
+  public int getColumnType(String columnName) {
+    int col = getColumnIndex(columnName);
+    return col == -1 ? -1 : columnTypes[col];
+  }
+
+  public int getColumnType(int column) {
+    return columnTypes[column];
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public TableRow getRow(int row) {
+    return new Row(row);
+  }
+
+  protected Object getColumn(int col) {
+    return columns[col];
+  }
+
+  public int[] getIntColumn(int col) {
+    return (int[])getColumn(col);
+  }
+
+  public long[] getLongColumn(int col) {
+    return (long[])getColumn(col);
+  }
+
+  public float[] getFloatColumn(int col) {
+    return (float[])getColumn(col);
+  }
+
+  public double[] getDoubleColumn(int col) {
+    return (double[])getColumn(col);
+  }
+
+  public String[] getStringColumn(int col) {
+    return (String[])getColumn(col);
+  }
+
+  public String[] getCategories(int col) {
+    return categories[col];
+  }
+
+  public BitSet getMissingRows(int col) {
+    return missingRows[col];
+  }
+
+  public Object getColumnBounds(int col) {
+    return null;
+  }
+
+  synchronized public Object getBlockBounds(int col) {
+    if (blockBounds == null) blockBounds = new Object[getColumnCount()];
+    if (blockBounds[col] == null) blockBounds[col] = computeBlockBounds(this, col);
+    return blockBounds[col];
+  }
+
+  synchronized protected void clearBlockBounds(int col) {
+    if (blockBounds != null) blockBounds[col] = null;
+  }
+
+  public String getString(int row, int col) {
+    int type = columnTypes[col];
+    if (type == Table.INT) {
+      return String.valueOf(getIntColumn(col)[row]);
+    } else if (type == Table.LONG) {
+      return String.valueOf(getLongColumn(col)[row]);
+    } else if (type == Table.FLOAT) {
+      float value = getFloatColumn(col)[row];
+      return Float.isNaN(value) ? null : String.valueOf(value);
+    } else if (type == Table.DOUBLE) {
+      double value = getDoubleColumn(col)[row];
+      return Double.isNaN(value) ? null : String.valueOf(value);
+    } else if (type == Table.CATEGORY) {
+      int code = getIntColumn(col)[row];
+      return code < 0 ? missingString : categories[col][code];
+    } else if (type == MiraTable.DATE) {
+      if (missingRows[col].get(row)) return missingString;
+      return DateVariable.printParse(new DateTime(getLongColumn(col)[row]));
+    } else {
+      return getStringColumn(col)[row];
+    }
+  }
+
+  public void setString(int row, int col, String value) {
+    if (columnTypes[col] == Table.CATEGORY) {
+      int code = -1;
+      if (value != null && !value.equals(missingString)) {
+        String[] values = categories[col];
+        code = Arrays.asList(values).indexOf(value);
+        if (code == -1) {
+          code = values.length;
+          categories[col] = Arrays.copyOf(values, code + 1);
+          categories[col][code] = value;
+        }
+      }
+      getIntColumn(col)[row] = code;
+      clearBlockBounds(col);
+    } else {
+      getStringColumn(col)[row] = value;
+    }
+  }
+
+  public boolean save(File file, String options) throws IOException {
+    if (options != null && Arrays.asList(options.split(",")).contains("bin")) {
+      return MappedTable.write(this, file);
+    }
+    return toTable().save(file, options);
+  }
+
+  /**
+   * Creates a regular table with the contents of this one, used to save the
+   * data in any of the formats supported by Processing.
+   */
+  public MiraTable toTable() {
+    MiraTable table = new MiraTable();
+    table.setMissingString(missingString);
+    table.setColumnTitles(columnTitles);
+    for (int col = 0; col < columnTypes.length; col++) {
+      int type = columnTypes[col];
+      boolean numerical = type == Table.INT || type == Table.LONG || 
+                          type == Table.FLOAT || type == Table.DOUBLE; 
+      table.setColumnType(col, numerical ? type : Table.STRING);
+      table.dateColumns[col] = type == MiraTable.DATE;
+    }
+    table.setRowCount(rowCount);
+    for (int col = 0; col < columnTypes.length; col++) {
+      int type = columnTypes[col];
+      if (type == Table.CATEGORY || type == MiraTable.DATE) {
+        String[] values = new String[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+          values[row] = getString(row, col);
+        }
+        table.setColumnData(col, values);
+        // The string values are encoded as categories by the table itself
+        if (type == Table.CATEGORY) table.setColumnType(col, Table.CATEGORY);
+      } else {
+        table.setColumnData(col, getColumn(col));
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Computes the range of the non-missing values in the column, which for 
+   * categories are the codes in the order they first appear. When missing is
+   * not null, the number of missing values is stored in its first element, 
+   * so everything is obtained in a single pass over the column.
+   */
+  static public Object computeBounds(DataSource table, int col, int[] missing) {
+    int type = table.getColumnType(col);
+    Object bounds = null;
+    int count = 0;
+    if (type == Table.INT) {
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int value: table.getIntColumn(col)) {
+        if (value == NumericalVariable.MISSING_INT) {
+          count++;
+          continue;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      bounds = new int[] {min, max};
+    } else if (type == Table.LONG) {
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (long value: table.getLongColumn(col)) {
+        if (value == NumericalVariable.MISSING_LONG) {
+          count++;
+          continue;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      bounds = new long[] {min, max};
+    } else if (type == Table.FLOAT) {
+      float min = Float.MAX_VALUE;
+      float max = Float.MIN_VALUE;
+      for (float value: table.getFloatColumn(col)) {
+        if (value == NumericalVariable.MISSING_FLOAT || Float.isNaN(value)) {
+          count++;
+          continue;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      bounds = new float[] {min, max};
+    } else if (type == Table.DOUBLE) {
+      double min = Double.MAX_VALUE;
+      double max = Double.MIN_VALUE;
+      for (double value: table.getDoubleColumn(col)) {
+        if (value == NumericalVariable.MISSING_DOUBLE || Double.isNaN(value)) {
+          count++;
+          continue;
+        }
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+      }
+      bounds = new double[] {min, max};
+    } else if (type == MiraTable.DATE) {
+      long[] values = table.getLongColumn(col);
+      BitSet rows = table.getMissingRows(col);
+      long min = Long.MAX_VALUE;
+      long max = Long.MIN_VALUE;
+      for (int r = rows.nextClearBit(0); r < values.length; r = rows.nextClearBit(r + 1)) {
+        min = Math.min(min, values[r]);
+        max = Math.max(max, values[r]);
+      }
+      bounds = min <= max ? new long[] {min, max} : new long[0];
+      count = rows.cardinality();
+    } else if (type == Table.CATEGORY) {
+      int[] codes = table.getIntColumn(col);
+      boolean[] found = new boolean[table.getCategories(col).length];
+      int[] order = new int[found.length];
+      int n = 0;
+      for (int code: codes) {
+        if (code < 0) {
+          count++;
+          continue;
+        }
+        if (found[code]) continue;
+        found[code] = true;
+        order[n++] = code;
+        // The rest of the column is only needed to count the missing values
+        if (n == order.length && missing == null) break;
+      }
+      bounds = Arrays.copyOf(order, n);
+    }
+    if (missing != null) missing[0] = count;
+    return bounds;
+  }
+
+  /**
+   * Summarizes each block of BLOCK_SIZE rows in the column, see
+   * DataSource.getBlockBounds(). For float and double columns the max of a 
+   * block is NaN if the block has any NaN, and so is the min if all of its 
+   * values are NaN. 
+   */
+  static public Object computeBlockBounds(DataSource table, int col) {
+    int type = table.getColumnType(col);
+    int count = table.getRowCount();
+    int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    Object bounds = null;
+    if (type == Table.INT) {
+      int[] values = table.getIntColumn(col);
+      int[] minmax = new int[2 * blocks];
+      for (int b = 0; b < blocks; b++) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int r = b * BLOCK_SIZE; r < Math.min(count, (b + 1) * BLOCK_SIZE); r++) {
+          min = Math.min(min, values[r]);
+          max = Math.max(max, values[r]);
+        }
+        minmax[2 * b] = min;
+        minmax[2 * b + 1] = max;
+      }
+      bounds = minmax;
+    } else if (type == Table.LONG || type == MiraTable.DATE) {
+      long[] values = table.getLongColumn(col);
+      BitSet missing = type == MiraTable.DATE ? table.getMissingRows(col) : null;
+      long[] minmax = new long[2 * blocks];
+      for (int b = 0; b < blocks; b++) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int r = b * BLOCK_SIZE; r < Math.min(count, (b + 1) * BLOCK_SIZE); r++) {
+          if (missing != null && missing.get(r)) continue;
+          min = Math.min(min, values[r]);
+          max = Math.max(max, values[r]);
+        }
+        minmax[2 * b] = min;
+        minmax[2 * b + 1] = max;
+      }
+      bounds = minmax;
+    } else if (type == Table.FLOAT) {
+      float[] values = table.getFloatColumn(col);
+      float[] minmax = new float[2 * blocks];
+      for (int b = 0; b < blocks; b++) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        int nan = 0;
+        int n = 0;
+        for (int r = b * BLOCK_SIZE; r < Math.min(count, (b + 1) * BLOCK_SIZE); r++, n++) {
+          float value = values[r];
+          if (value != value) {
+            nan++;
+            continue;
+          }
+          min = Math.min(min, value);
+          max = Math.max(max, value);
+        }
+        minmax[2 * b] = nan == n ? Float.NaN : min;
+        minmax[2 * b + 1] = 0 < nan ? Float.NaN : max;
+      }
+      bounds = minmax;
+    } else if (type == Table.DOUBLE) {
+      double[] values = table.getDoubleColumn(col);
+      double[] minmax = new double[2 * blocks];
+      for (int b = 0; b < blocks; b++) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int nan = 0;
+        int n = 0;
+        for (int r = b * BLOCK_SIZE; r < Math.min(count, (b + 1) * BLOCK_SIZE); r++, n++) {
+          double value = values[r];
+          if (value != value) {
+            nan++;
+            continue;
+          }
+          min = Math.min(min, value);
+          max = Math.max(max, value);
+        }
+        minmax[2 * b] = nan == n ? Double.NaN : min;
+        minmax[2 * b + 1] = 0 < nan ? Double.NaN : max;
+      }
+      bounds = minmax;
+    } else if (type == Table.CATEGORY) {
+      int[] codes = table.getIntColumn(col);
+      BitSet[] present = new BitSet[blocks];
+      for (int b = 0; b < blocks; b++) {
+        BitSet found = new BitSet();
+        for (int r = b * BLOCK_SIZE; r < Math.min(count, (b + 1) * BLOCK_SIZE); r++) {
+          found.set(Math.max(0, codes[r] + 1));
+        }
+        present[b] = found;
+      }
+      bounds = present;
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns the rows of a numerical column in increasing order of their 
+   * values, with the NaNs at the end.
+   */
+  static public int[] sortRows(DataSource table, int col) {
+    int type = table.getColumnType(col);
+    int count = table.getRowCount();
+    int[] rows = new int[count];
+    if (type == Table.INT || type == Table.FLOAT) {
+      // The value and the row fit together in a long, so they can be sorted
+      // as primitives
+      long[] packed = new long[count];
+      if (type == Table.INT) {
+        int[] values = table.getIntColumn(col);
+        for (int r = 0; r < count; r++) packed[r] = ((long)values[r] << 32) | r;
+      } else {
+        float[] values = table.getFloatColumn(col);
+        for (int r = 0; r < count; r++) {
+          int bits = Float.floatToIntBits(values[r]);
+          if (bits < 0) bits ^= Integer.MAX_VALUE;
+          packed[r] = ((long)bits << 32) | r;
+        }
+      }
+      Arrays.sort(packed);
+      for (int i = 0; i < count; i++) rows[i] = (int)packed[i];
+    } else if (type == Table.LONG || type == Table.DOUBLE) {
+      long[] keys;
+      if (type == Table.LONG) {
+        keys = table.getLongColumn(col);
+      } else {
+        double[] values = table.getDoubleColumn(col);
+        keys = new long[count];
+        for (int r = 0; r < count; r++) {
+          long bits = Double.doubleToLongBits(values[r]);
+          keys[r] = bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+        }
+      }
+      for (int r = 0; r < count; r++) rows[r] = r;
+      sortRows(rows, keys);
+    }
+    return rows;
+  }
+
+  /**
+   * Bottom-up merge sort of the rows by their keys.
+   */
+  static protected void sortRows(int[] rows, long[] keys) {
+    int count = rows.length;
+    int[] src = rows;
+    int[] dest = new int[count];
+    for (int width = 1; width < count; width *= 2) {
+      for (int lo = 0; lo < count; lo += 2 * width) {
+        int mid = Math.min(lo + width, count);
+        int hi = Math.min(lo + 2 * width, count);
+        int i = lo, j = mid, k = lo;
+        while (i < mid && j < hi) {
+          dest[k++] = keys[src[j]] < keys[src[i]] ? src[j++] : src[i++];
+        }
+        while (i < mid) dest[k++] = src[i++];
+        while (j < hi) dest[k++] = src[j++];
+      }
+      int[] tmp = src;
+      src = dest;
+      dest = tmp;
+    }
+    if (src != rows) System.arraycopy(src, 0, rows, 0, count);
+  }
+
+  protected class Row implements TableRow {
+    protected int row;
+
+    public Row(int row) {
+      this.row = row;
+    }
+
+    public String getString(int column) {
+      return ColumnTable.this.getString(row, column);
+    }
+
+    public String getString(String columnName) {
+      return getString(getColumnIndex(columnName));
+    }
+
+    public int getInt(int column) {
+      return getIntColumn(column)[row];
+    }
+
+    public int getInt(String columnName) {
+      return getInt(getColumnIndex(columnName));
+    }
+
+    public long getLong(int column) {
+      return getLongColumn(column)[row];
+    }
+
+    public long getLong(String columnName) {
+      return getLong(getColumnIndex(columnName));
+    }
+
+    public float getFloat(int column) {
+      return getFloatColumn(column)[row];
+    }
+
+    public float getFloat(String columnName) {
+      return getFloat(getColumnIndex(columnName));
+    }
+
+    public double getDouble(int column) {
+      return getDoubleColumn(column)[row];
+    }
+
+    public double getDouble(String columnName) {
+      return getDouble(getColumnIndex(columnName));
+    }
+
+    public void setString(int column, String value) {
+      ColumnTable.this.setString(row, column, value);
+    }
+
+    public void setString(String columnName, String value) {
+      setString(getColumnIndex(columnName), value);
+    }
+
+    public void setInt(int column, int value) {
+      getIntColumn(column)[row] = value;
+    }
+
+    public void setInt(String columnName, int value) {
+      setInt(getColumnIndex(columnName), value);
+    }
+
+    public void setLong(int column, long value) {
+      getLongColumn(column)[row] = value;
+    }
+
+    public void setLong(String columnName, long value) {
+      setLong(getColumnIndex(columnName), value);
+    }
+
+    public void setFloat(int column, float value) {
+      getFloatColumn(column)[row] = value;
+    }
+
+    public void setFloat(String columnName, float value) {
+      setFloat(getColumnIndex(columnName), value);
+    }
+
+    public void setDouble(int column, double value) {
+      getDoubleColumn(column)[row] = value;
+    }
+
+    public void setDouble(String columnName, double value) {
+      setDouble(getColumnIndex(columnName), value);
+    }
+
+    public int getColumnCount() {
+      return ColumnTable.this.getColumnCount();
+    }
+
+    public int getColumnType(String columnName) {
+      return ColumnTable.this.getColumnType(columnName);
+    }
+
+    public int getColumnType(int column) {
+      return ColumnTable.this.getColumnType(column);
+    }
+
+    public int[] getColumnTypes() {
+      return columnTypes;
+    }
+
+    public String getColumnTitle(int column) {
+      return ColumnTable.this.getColumnTitle(column);
+    }
+
+    public String[] getColumnTitles() {
+      return columnTitles;
+    }
+
+    public void write(PrintWriter writer) {
+      for (int col = 0; col < columnTypes.length; col++) {
+        if (col != 0) writer.print('\t');
+        String value = getString(col);
+        if (value != null) writer.print(value);
+      }
+    }
+
+    public void print() {
+      PrintWriter writer = new PrintWriter(System.out);
+      write(writer);
+      writer.println();
+      writer.flush();
+    }
+  }
+}
@@ -2,8 +2,8 @@
 
 package miralib.data;
 
-import miralib.math.Numbers;
 import miralib.shannon.BinOptimizer;
+import miralib.shannon.JointCounts;
 import miralib.utils.Log;
 
 /**
@@ -47,15 +47,7 @@ public class ContingencyTable {
       return;
     }
     
-    float sbinx = 1.0f / nbinx;
-    float sbiny = 1.0f / nbiny;
-    double[][] counts = new double[nbinx][nbiny];
-      
-    for (Value2D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-      counts[bx][by] += value.w;
-    }
+    double[][] counts = new JointCounts(slice, nbinx, nbiny).counts;
     
     colCount = nbinx;
     rowCount = nbiny;    
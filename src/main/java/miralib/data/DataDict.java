@@ -10,4 +10,5 @@ public interface DataDict {
   public TableRow getRow(int row); 
   public DataSource typedSource(InputStream input, String options) throws IOException;
   public DataSource typedSource(InputStream input, DataDict dict, String options, String missing) throws IOException; 
+  public DataSource typedSource(ChunkedParser parser) throws IOException;
 }
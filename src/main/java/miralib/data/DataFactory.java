@@ -1,5 +1,6 @@
 package miralib.data;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -9,7 +10,11 @@ import miralib.data.DataSet.CodebookPage;
 public class DataFactory {
   static public DataSource createSource(InputStream input, String options) 
       throws IOException {
-    return (DataSource) new MiraTable(input, options);
+    return new ColumnTable(new MiraTable(input, options));
+  }
+  
+  static public DataSource openBinary(File file) throws IOException {
+    return MappedTable.open(file);
   }
   
   static public DataDict createDict(InputStream input, String options) 
@@ -19,6 +24,12 @@ public class DataFactory {
   
   static public DataSource guessedParse(InputStream input, 
       HashMap<String, CodebookPage> codebook, String options, String missing) {
-    return (DataSource) MiraTable.guessedParse(input, codebook, options, missing);
+    return new ColumnTable(MiraTable.guessedParse(input, codebook, options, missing));
+  }
+  
+  static public DataSource guessedParse(ChunkedParser parser, 
+      HashMap<String, CodebookPage> codebook, String missing) throws IOException {
+    ColumnTable strings = parser.parse(false);
+    return new ColumnTable(MiraTable.guessedTypes(strings.toTable(), codebook, missing));
   }
 }
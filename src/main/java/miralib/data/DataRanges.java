@@ -2,14 +2,21 @@
 
 package miralib.data;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import miralib.utils.Log;
 
 /**
- * Dictionary that links variables with their respective ranges.
+ * Dictionary that links variables with their respective ranges. The rows that 
+ * are inside all the ranges are computed once for every version of the
+ * ranges, and shared with the copies. Each range keeps the bitmap of its own
+ * rows, so when a single range changes only that one is evaluated again, and
+ * the selection is updated with the rows that enter or leave it.
  *
  */
 
@@ -20,26 +27,144 @@ public class DataRanges extends HashMap<Variable, Range> {
   static final public int REMOVED_RANGE  = 2;
   static final public int MODIFIED_RANGE = 3;
   
+  static protected AtomicLong lastVersion = new AtomicLong();
+  
+  protected long version;
+  protected BitSet selection;
+  protected DataSource selectionData;
+  protected long selectionVersion;
+  protected HashMap<Variable, Predicate> predicates = new HashMap<Variable, Predicate>();
+  
   public DataRanges() {
     super();
   }
   
   public DataRanges(DataRanges ranges) {
     super();
-    Set<Variable> variables = ranges.keySet();
-    for (Variable var: variables) {
-      if (var == null) {
-        Log.message("Found null variable in the ranges, something is going on (threading problems maybe)");
-        continue;
+    synchronized (ranges) {
+      Set<Variable> variables = ranges.keySet();
+      for (Variable var: variables) {
+        if (var == null) {
+          Log.message("Found null variable in the ranges, something is going on (threading problems maybe)");
+          continue;
+        }
+        this.put(var, Range.create(ranges.get(var)));
+      }
+      version = ranges.version;
+      selectionData = ranges.selectionData;
+      predicates.putAll(ranges.predicates);
+      if (ranges.selection != null && ranges.selectionVersion == ranges.version) {
+        selection = ranges.selection;
+        selectionVersion = version;
+      }
+    }
+  }
+  
+  /**
+   * Number that changes every time that a range is added, modified or removed.
+   * Versions are not repeated across different ranges, and the copies keep 
+   * the version of the original, so equal versions mean equal ranges.
+   */
+  synchronized public long getVersion() {
+    return version;
+  }
+  
+  /**
+   * Returns the rows that are inside all the ranges. The bitmap is shared 
+   * until the ranges change, so it must not be modified.
+   */
+  synchronized public BitSet getSelection(DataSource data) {
+    if (selection != null && selectionData == data && selectionVersion == version) {
+      return selection;
+    }
+    if (selectionData != data) {
+      predicates.clear();
+      selection = null;
+    }
+    
+    // Find the ranges that changed since the last selection, and evaluate them
+    ArrayList<Variable> added = new ArrayList<Variable>();
+    ArrayList<Variable> modified = new ArrayList<Variable>();
+    HashMap<Variable, Predicate> previous = new HashMap<Variable, Predicate>();
+    for (Variable var: keySet()) {
+      Range range = get(var);
+      Predicate pred = predicates.get(var);
+      if (pred != null && pred.range.equals(range)) continue;
+      if (pred == null) added.add(var);
+      else {
+        modified.add(var);
+        previous.put(var, pred);
+      }
+      predicates.put(var, new Predicate(data, range));
+    }
+    int removed = 0;
+    Iterator<Variable> iter = predicates.keySet().iterator();
+    while (iter.hasNext()) {
+      if (!containsKey(iter.next())) {
+        iter.remove();
+        removed++;
+      }
+    }
+    
+    BitSet rowSet;
+    int changes = added.size() + modified.size() + removed;
+    if (selection != null && changes == 1 && added.size() == 1) {
+      // Narrowing the selection
+      rowSet = (BitSet)selection.clone();
+      rowSet.and(predicates.get(added.get(0)).rows);
+    } else if (selection != null && changes == 1 && modified.size() == 1) {
+      // Only the rows that cross the boundaries of the range need to be 
+      // updated, the ones entering are checked against the other ranges
+      Variable var = modified.get(0);
+      BitSet rows0 = previous.get(var).rows;
+      BitSet rows1 = predicates.get(var).rows;
+      BitSet leaving = (BitSet)rows0.clone();
+      leaving.andNot(rows1);
+      BitSet entering = (BitSet)rows1.clone();
+      entering.andNot(rows0);
+      rowSet = (BitSet)selection.clone();
+      rowSet.andNot(leaving);
+      for (int r = entering.nextSetBit(0); r >= 0; r = entering.nextSetBit(r + 1)) {
+        boolean inside = true;
+        for (Predicate pred: predicates.values()) {
+          if (!pred.rows.get(r)) {
+            inside = false;
+            break;
+          }
+        }
+        if (inside) rowSet.set(r);
       }
-      this.put(var, Range.create(ranges.get(var)));
+    } else {
+      rowSet = new BitSet(data.getRowCount());
+      rowSet.set(0, data.getRowCount());
+      for (Predicate pred: predicates.values()) rowSet.and(pred.rows);
     }
+    
+    selection = rowSet;
+    selectionData = data;
+    selectionVersion = version;
+    return selection;
   }
   
   synchronized public Range get(Object key) {
     return super.get(key);
   }
   
+  synchronized public Range put(Variable key, Range value) {
+    version = lastVersion.incrementAndGet();
+    return super.put(key, value);
+  }
+  
+  synchronized public Range remove(Object key) {
+    version = lastVersion.incrementAndGet();
+    return super.remove(key);
+  }
+  
+  synchronized public void clear() {
+    version = lastVersion.incrementAndGet();
+    super.clear();
+  }
+  
   synchronized public Set<Variable> keySet() {
     return super.keySet();
   }
@@ -86,4 +211,18 @@ public class DataRanges extends HashMap<Variable, Range> {
       sb.append('\n').append(' ');
     }
   }
+  
+  /**
+   * Rows inside a single range, together with a copy of the range they were
+   * evaluated for. The bitmap is shared between copies of the ranges.
+   */
+  static protected class Predicate {
+    Range range;
+    BitSet rows;
+    
+    Predicate(DataSource data, Range range) {
+      this.range = Range.create(range);
+      rows = range.select(data);
+    }
+  }
 }
@@ -3,9 +3,16 @@
 package miralib.data;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.zip.GZIPInputStream;
 import java.io.BufferedReader;
@@ -41,6 +48,7 @@ public class DataSet {
   protected DataTree tree; 
   protected HashMap<String, CodebookPage> codebook;
   protected ArrayList<Variable> allvars;
+  protected HashMap<String, Variable> varsByName;
   protected ArrayList<Variable> covars;
   protected ArrayList<Variable> columns;  
   protected ArrayList<Float> scores;
@@ -60,6 +68,15 @@ public class DataSet {
   protected int nonthreadedCount;
 
   protected int maxSortSliceSize = Integer.MAX_VALUE;
+  
+  // Number of columns scored by each task of the score pool
+  final static protected int SORT_BATCH_SIZE = 32;
+  
+  // The slices can use up to this fraction of the maximum memory
+  final static protected int SLICE_CACHE_FRACTION = 8;
+  protected SliceCache sliceCache = 
+      new SliceCache(Runtime.getRuntime().maxMemory() / SLICE_CACHE_FRACTION);
+  protected RowSampler sampler;
 
   private static final String INCREASING_MEMORY_WIKI_URL =
     "https://github.com/mirador/mirador/wiki/Advanced-configuration";
@@ -70,14 +87,29 @@ public class DataSet {
     "by editing the config.json file inside the app's folder.<br>" +
     "Check <a href=\"" + INCREASING_MEMORY_WIKI_URL + "\">Mirador's wiki</a> for more information.";
 
+  // Titles of the columns in the data file, and names of the variables that
+  // need to be loaded from it (null if all of them)
+  protected String[] sourceTitles;
+  protected HashSet<String> projection;
+
+  // Parser of the data file being loaded, used to report the progress
+  static protected volatile ChunkedParser loadParser;
+  
+  // Dictionary parsed during the load, which is needed by the projection, the
+  // typed parsing and the metadata
+  protected DataDict dict;
+  protected String dictFile;
+  
   public DataSet(Project project) throws Exception {
     this.project = project;
     
     try {
       loadCodebook();
+      loadProjection();
       loadData();
       loadGroups();
-      loadMetadata();    
+      loadMetadata();
+      dict = null;
       initColumns();
       initKey();
       Log.message("Done.");
@@ -86,6 +118,15 @@ public class DataSet {
     }
   }
   
+  /**
+   * Fraction of the data file that has been parsed by the dataset currently
+   * being loaded, or 0 if the data is read from other sources.
+   */
+  static public float getLoadProgress() {
+    ChunkedParser parser = loadParser;
+    return parser == null ? 0 : parser.getProgress();
+  }
+  
   public int getRecordCount() {
     return getRowCount();
   }
@@ -99,14 +140,7 @@ public class DataSet {
   }
   
   public int getRowCount(DataRanges ranges) {
-    DataRanges oranges = new DataRanges(ranges);
-    int ntot = 0;
-    for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow row = data.getRow(r);       
-      if (!insideRanges(row, oranges)) continue;
-      ntot++; 
-    }
-    return ntot;
+    return ranges.getSelection(data).cardinality();
   } 
   
   public int getGroupCount() {
@@ -314,6 +348,8 @@ public class DataSet {
     if (sorting()) cancelCurrentSort();    
     columns.clear();
     scores.clear(); 
+    // The slices of the removed columns are not needed anymore
+    sliceCache.clear();
     for (int i = 0; i < getVariableCount(); i++) {
       Variable var = getVariable(i);
       var.column = false;
@@ -397,27 +433,19 @@ public class DataSet {
       datatab.addColumn(name, Table.STRING);
     }
     
-    int count = 0;
-    boolean[] mask = new boolean[data.getRowCount()]; 
-    for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow src = data.getRow(r);
-      mask[r] = insideRanges(src, oranges);
-      if (mask[r]) count++;
-    }
-    datatab.setRowCount(count);
+    BitSet selected = oranges.getSelection(data);
+    datatab.setRowCount(selected.cardinality());
     
     int r1 = 0;
-    for (int r0 = 0; r0 < data.getRowCount(); r0++) {
-      if (!mask[r0]) continue;
+    for (int r0 = selected.nextSetBit(0); r0 >= 0; r0 = selected.nextSetBit(r0 + 1), r1++) {
       TableRow src = data.getRow(r0);
       TableRow dest = datatab.getRow(r1);
-      r1++;
       
       int destCol = 0;
       for (Variable var: selvars) {
         int srcCol = var.getIndex();
-        String value = var.missing(src) ? project.missString :
-                                          src.getString(srcCol);
+        String value = var.missing(data, r0) ? project.missString :
+                                               src.getString(srcCol);
         dest.setString(destCol, value);
         destCol++;
       }
@@ -456,27 +484,76 @@ public class DataSet {
   }
   
   public float getMissing(Variable var, DataRanges ranges) {
-    DataRanges oranges = new DataRanges(ranges);
-    int ntot = 0;
-    int nmis = 0;    
-    for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow row = data.getRow(r);
-      if (!insideRanges(row, oranges)) continue;
-      ntot++;
-      if (var.missing(row)) nmis++;
-    }
-    float missing = (float)nmis / (float)ntot;    
+    if (ranges == null || ranges.isEmpty()) {
+      return (float)var.getMissingCount(data) / (float)data.getRowCount();
+    }
+    BitSet selected = (BitSet)ranges.getSelection(data).clone();
+    int ntot = selected.cardinality();
+    selected.and(var.getMissingRows(data));
+    float missing = (float)selected.cardinality() / (float)ntot;    
     return missing;
   }
   
+  /**
+   * Returns the slice from the cache when it was already built for the same
+   * ranges, or a sample of the full slice when only that one is in the 
+   * cache. The slices are shared, so they must not be modified.
+   */
   public DataSlice1D getSlice(Variable varx, DataRanges ranges, int maxSize) {
-    return new DataSlice1D(data, varx, ranges, keyVar, maxSize);
+    int size = maxSize < data.getRowCount() ? maxSize : SliceCache.FULL_SIZE;
+    long version = ranges.getVersion();
+    DataSlice1D slice = sliceCache.get(varx, keyVar, version, size);
+    if (slice == null && size < SliceCache.FULL_SIZE) {
+      DataSlice1D full = sliceCache.get(varx, keyVar, version, SliceCache.FULL_SIZE);
+      if (full != null) return full.sample(size, getSampler());
+    }
+    if (slice == null) {
+      slice = new DataSlice1D(data, varx, ranges, keyVar, getSampler(), maxSize);
+      sliceCache.put(slice, size);
+    }
+    return slice;
   }
   
   public DataSlice2D getSlice(Variable varx, Variable vary, DataRanges ranges, int maxSize) {
-    return new DataSlice2D(data, varx, vary, ranges, keyVar, maxSize);
+    return getSlice(varx, vary, ranges, maxSize, null);
+  }
+  
+  /**
+   * Same as above, but new slices are built with the batch when it is not 
+   * null. The batch needs to have the same vary, ranges and maxSize.
+   */
+  protected DataSlice2D getSlice(Variable varx, Variable vary, DataRanges ranges, 
+                                 int maxSize, SliceBatch batch) {
+    int size = maxSize < data.getRowCount() ? maxSize : SliceCache.FULL_SIZE;
+    long version = ranges.getVersion();
+    DataSlice2D slice = sliceCache.get(varx, vary, keyVar, version, size);
+    if (slice == null && size < SliceCache.FULL_SIZE) {
+      DataSlice2D full = sliceCache.get(varx, vary, keyVar, version, SliceCache.FULL_SIZE);
+      if (full != null) return full.sample(size, getSampler());
+    }
+    if (slice == null) {
+      if (batch == null) {
+        slice = new DataSlice2D(data, varx, vary, ranges, keyVar, getSampler(), maxSize);
+      } else {
+        slice = batch.getSlice(data, varx);
+      }
+      sliceCache.put(slice, size);
+    }
+    return slice;
   }
 
+  /**
+   * Random order of the rows used to sample the slices, seeded with the seed
+   * of the project when there is one.
+   */
+  synchronized protected RowSampler getSampler() {
+    if (sampler == null) {
+      long seed = 0 < project.randomSeed ? project.randomSeed : new Random().nextLong();
+      sampler = new RowSampler(data.getRowCount(), seed);
+    }
+    return sampler;
+  }
+  
   public void setSortMaxSliceSize(int maxSize) {
     maxSortSliceSize = maxSize;
   }
@@ -492,6 +569,7 @@ public class DataSet {
     if (sortVar != null) sortVar.sortKey = false;
     var.sortKey = true;
     sortVar = var;    
+    ranges.getSelection(data);
     sortRanges = new DataRanges(ranges);
     sortPValue = pvalue;
     sortMissingThreshold = misst;
@@ -512,6 +590,9 @@ public class DataSet {
 
   public void resort(DataRanges ranges) {
     if (sortVar != null) {
+      // Updating the selection of the original ranges, so only the ranges that
+      // changed since the last time are evaluated again
+      ranges.getSelection(data);
       sortRanges = new DataRanges(ranges);
       cancelCurrentSort();
       threadedSort = false;
@@ -596,34 +677,52 @@ public class DataSet {
   }
   
   protected void launchScorePool(boolean clear, final int maxSliceSize) {
-    // Calculating all the (missing) scores with a thread pool.
+    // Calculating all the (missing) scores with a thread pool. The columns are
+    // scored in batches, and all of them share the rows and the values of the 
+    // sort variable.
     threadedSort = true;
     if (clear) clearScores();
+    final SliceBatch batch = new SliceBatch(sortVar, sortRanges, keyVar, 
+                                            getSampler(), maxSliceSize);
     int proc = Runtime.getRuntime().availableProcessors();
-    scorePool = (ThreadPoolExecutor)Executors.newFixedThreadPool(Math.min(1, proc - 1));
+    scorePool = (ThreadPoolExecutor)Executors.newFixedThreadPool(Math.max(1, proc - 1));
+    ArrayList<Integer> pending = new ArrayList<Integer>();
     for (int i = 0; i < columns.size(); i++) {
-      if (-1 < scores.get(i)) continue; 
-      final int col = i;
+      if (-1 < scores.get(i)) continue;
+      pending.add(i);
+    }
+    for (int i = 0; i < pending.size(); i += SORT_BATCH_SIZE) {
+      final List<Integer> cols = pending.subList(i, Math.min(i + SORT_BATCH_SIZE, pending.size()));
       scorePool.execute(new Runnable() {
         public void run() {
-          Variable vx = columns.get(col);
-          DataSlice2D slice = getSlice(vx, sortVar, sortRanges, maxSliceSize);
-          float score = 0f;
-          if (slice.missing < sortMissingThreshold) {
-            if (project.sortMethod == Project.SIMILARITY) {
-              score = Similarity.calculate(slice, sortPValue, project);
-            } else if (project.sortMethod == Project.PVALUE) { 
-              float[] res = PValue.calculate(slice, project);
-              score = PValue.getScore(slice, res[1]);
-            }
+          for (int col: cols) {
+            if (Thread.currentThread().isInterrupted()) return;
+            Variable vx = columns.get(col);
+            DataSlice2D slice = getSlice(vx, sortVar, sortRanges, maxSliceSize, batch);
+            float score = getScore(slice);
+            // The score of a cancelled calculation is not valid
+            if (Thread.currentThread().isInterrupted()) return;
+            scores.set(col, score);
           }
-          scores.set(col, score);
         }
       });      
     }
     scorePool.shutdown();
   }
 
+  protected float getScore(DataSlice2D slice) {
+    float score = 0f;
+    if (slice.missing < sortMissingThreshold) {
+      if (project.sortMethod == Project.SIMILARITY) {
+        score = Similarity.calculate(slice, sortPValue, project);
+      } else if (project.sortMethod == Project.PVALUE) { 
+        float[] res = PValue.calculate(slice, project);
+        score = PValue.getScore(slice, res[1]);
+      }
+    }
+    return score;
+  }
+
   protected void clearScores() {
     Collections.fill(scores, new Float(-1f));
   }
@@ -661,14 +760,6 @@ public class DataSet {
     return sortVar;
   }
   
-  final static protected boolean insideRanges(TableRow row, DataRanges ranges) {
-    boolean inside = true;
-    for (Range range: ranges.values()) {
-      if (!range.inside(row)) return false;  
-    }
-    return inside;    
-  }
-  
   protected void loadCodebook() {
     codebook = new HashMap<String, CodebookPage>();
     if (project.hasCodebook()) {
@@ -709,20 +800,101 @@ public class DataSet {
     } 
   }
   
+  /**
+   * Determines the variables that are actually used, which are the ones listed
+   * in the groups file plus the key and weight variables, so the remaining
+   * columns in the data file are not parsed at all.
+   */
+  protected void loadProjection() {
+    sourceTitles = null;
+    projection = null;
+    if (!project.hasSource()) return;
+    
+    String dataPath = project.getSourcePath();
+    String optionStr = Table.extensionOptions(true, dataPath, "header");
+    if (!(new File(dataPath)).exists() || !ChunkedParser.supports(dataPath, optionStr)) return;
+    try {
+      ChunkedParser parser = new ChunkedParser(new File(dataPath), optionStr, project.missString);
+      sourceTitles = parser.readTitles();
+    } catch (IOException e) {
+      Log.warning("Cannot read the titles in " + dataPath);
+      return;
+    }
+    
+    if (sourceTitles == null || !project.hasGroups() || 
+        !(new File(project.getGroupsPath())).exists()) return;
+    XML xml = loadXML(project.getGroupsPath());
+    if (xml == null) return;
+    
+    HashSet<String> names = new HashSet<String>();
+    for (XML group: xml.getChildren("group")) {
+      for (XML table: group.getChildren("table")) {
+        for (XML varx: table.getChildren("variable")) {
+          names.add(varx.getString("name"));
+        }
+      }
+    }
+    
+    // Without any of the variables in the data, the default tree with all the
+    // variables is used instead
+    boolean found = false;
+    for (String title: sourceTitles) {
+      if (names.contains(title)) {
+        found = true;
+        break;
+      }
+    }
+    if (!found) return;
+    
+    names.add(project.keyVar);
+    for (CodebookPage pg: codebook.values()) {
+      if (pg.isKey()) names.add(pg.name);
+      if (pg.hasWeight()) names.add(pg.weight);
+    }
+    if (project.hasDictionary() && (new File(project.getDictionaryPath())).exists()) {
+      DataDict dict = loadDict(project.getDictionaryPath());
+      for (int r = 0; r < dict.getRowCount(); r++) {
+        TableRow row = dict.getRow(r);
+        if (3 < row.getColumnCount()) {
+          String weight = row.getString(3);
+          if (weight != null) names.add(weight);
+        }
+      }
+    }
+    projection = names;
+    Log.message("Loading " + names.size() + " variables listed in the groups...");
+  }
+  
   protected void loadData() {
     Log.message("Loading data...");
+    loadParser = null;
     
     boolean useBinary = project.hasBinary();
     
     String dataPath = project.hasSource() ? project.getSourcePath() : "";
     String dictPath = project.hasDictionary() ? project.getDictionaryPath() : "";
     String binPath = project.hasBinary() ? project.getBinaryPath() : "";
+    
+    // The dates are parsed when loading the data, so the patterns need to be
+    // set beforehand
+    DateVariable.setParsePattern(project.dateParsePattern);
+    DateVariable.setPrintPattern(project.datePrintPattern);
 
     try {
       if (useBinary && (new File(binPath)).exists()) {
         Log.message("  Reading binary file...");
-        data = loadTable(binPath);
-      } else {
+        data = loadBinary(binPath);
+        if (data != null && !hasSourceColumns(data)) {
+          Log.message("  Binary file is missing some variables, it will be created again");
+          data = null;
+        }
+        if (data == null && !(new File(dataPath)).exists()) {
+          // Binary file in the old format, and no data file to recreate it 
+          data = loadTable(binPath);
+        }
+      } 
+      
+      if (data == null) {
         Log.message("  Reading data file...");
 
         if ((new File(dictPath)).exists()) {
@@ -745,9 +917,8 @@ public class DataSet {
     }
 
     Variable.setMissingString(project.missString);
-    DateVariable.setParsePattern(project.dateParsePattern);
-    DateVariable.setPrintPattern(project.datePrintPattern);    
     allvars = new ArrayList<Variable>();  
+    varsByName = new HashMap<String, Variable>();
     for (int col = 0; col < data.getColumnCount(); col++) {
       String name = data.getColumnTitle(col);      
       int type = data.getColumnType(col);
@@ -757,16 +928,51 @@ public class DataSet {
       }
       Variable var = Variable.create(col, name, type);
       allvars.add(var);
+      if (!varsByName.containsKey(name)) varsByName.put(name, var);
     }
     
+    initRanges();
     for (Variable var: allvars) {
-      var.initRange(data);
       Log.message("  Variable " + var.getName() + " " + Variable.formatType(var.type()) + " " + var.formatRange());
     }
     
     covars = new ArrayList<Variable>(); 
   }
    
+  /**
+   * Computes the ranges and missing counts of all the variables in a single
+   * pass over the data, where each column is processed in parallel.
+   */
+  protected void initRanges() {
+    forEachVariable(new VariableTask() {
+      public void run(Variable var) {
+        var.initRange(data);
+      }
+    });
+  }
+  
+  
+  protected void forEachVariable(final VariableTask task) {
+    int proc = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(proc);
+    ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+    for (final Variable var: allvars) {
+      tasks.add(pool.submit(new Runnable() {
+        public void run() {
+          task.run(var);
+        }
+      }));
+    }
+    pool.shutdown();
+    try {
+      for (Future<?> future: tasks) future.get();
+    } catch (InterruptedException e) {
+      Log.error("Initialization of the variables was interrupted", e);
+    } catch (ExecutionException e) {
+      Log.error("Cannot initialize the variables", e);
+    }
+  }
+  
   protected void loadGroups() {
     if (project.hasGroups() && new File(project.getGroupsPath()).exists()) {
       Log.message("Loading groups...");
@@ -829,7 +1035,8 @@ public class DataSet {
       // Loading metadata (alias, range and weights) from dictionary file.
       DataDict dict = loadDict(project.getDictionaryPath());
       for (int r = 0; r < dict.getRowCount(); r++) {
-        Variable var = allvars.get(r);
+        Variable var = getDictVariable(r);
+        if (var == null) continue;
         TableRow row = dict.getRow(r);
         int count = row.getColumnCount();        
         String alias = row.getString(0);
@@ -891,10 +1098,35 @@ public class DataSet {
   }
   
   protected Variable getVariableImpl(String name) {
-    for (Variable var: allvars) {
-      if (var.name.equals(name)) return var;
+    return varsByName.get(name);
+  }
+  
+  /**
+   * Returns the variable described in row r of the dictionary, which
+   * corresponds to column r in the data file.
+   */
+  protected Variable getDictVariable(int r) {
+    if (projection == null) return r < allvars.size() ? allvars.get(r) : null;
+    return r < sourceTitles.length ? getVariableImpl(sourceTitles[r]) : null;
+  }
+  
+  /**
+   * Checks that the table includes all the columns of the data file that are 
+   * needed.
+   */
+  protected boolean hasSourceColumns(DataSource table) {
+    if (sourceTitles == null) return true;
+    HashSet<String> titles = new HashSet<String>();
+    for (int col = 0; col < table.getColumnCount(); col++) {
+      titles.add(table.getColumnTitle(col));
     }
-    return null;
+    for (String name: sourceTitles) {
+      if (name == null || name.equals("")) continue;
+      if ((projection == null || projection.contains(name)) && !titles.contains(name)) {
+        return false;
+      }
+    }
+    return true;
   }
   
   protected void initWeight(Variable var, String weightStr) {
@@ -939,6 +1171,9 @@ public class DataSet {
       for (String opt : optionList) {
         if (opt.startsWith("dictionary=")) {
           dict = loadDict(opt.substring(opt.indexOf('=') + 1));
+          if (ChunkedParser.supports(filename, optionStr)) {
+            return dict.typedSource(createParser(filename, optionStr, missingStr));
+          }
           return dict.typedSource(createInput(filename), dict, optionStr, missingStr);
         }
       }
@@ -952,6 +1187,19 @@ public class DataSet {
     }
   }
 
+  protected DataSource loadBinary(String filename) {
+    try {
+      DataSource table = DataFactory.openBinary(new File(filename));
+      if (table == null) {
+        Log.message("  Binary file is in an older format, it will be created again");
+      }
+      return table;
+    } catch (IOException e) {
+      Log.warning("Cannot read binary file " + filename + ", it will be created again");
+      return null;
+    }
+  }
+  
   protected boolean saveTable(DataSource table, String filename, String options) {
     try {
       File outputFile = saveFile(filename);
@@ -1007,6 +1255,13 @@ public class DataSet {
     }
   }
   
+  protected ChunkedParser createParser(String filename, String options, 
+                                       String missingStr) {
+    loadParser = new ChunkedParser(new File(filename), options, missingStr);
+    if (projection != null) loadParser.setProjection(projection);
+    return loadParser;
+  }
+  
   protected InputStream createInput(String filename) {
     if (filename == null || filename.length() == 0) return null;
     
@@ -1059,19 +1314,35 @@ public class DataSet {
   
   protected DataSource loadTableNoDict(String filename, String options, String missingStr) {
     String optionStr = Table.extensionOptions(true, filename, options);
+    if (ChunkedParser.supports(filename, optionStr)) {
+      try {
+        return DataFactory.guessedParse(createParser(filename, optionStr, missingStr), 
+                                        codebook, missingStr);
+      } catch (IOException e) {
+        Log.error("Cannot parse data", e);
+        return null;
+      }
+    }
     return DataFactory.guessedParse(createInput(filename), codebook, optionStr, missingStr);      
   }
   
   protected DataDict loadDict(String filename) {
+    if (dict != null && filename.equals(dictFile)) return dict;
     try {
       String optionStr = Table.extensionOptions(true, filename, null);
-      return DataFactory.createDict(createInput(filename), optionStr);      
+      dict = DataFactory.createDict(createInput(filename), optionStr);
+      dictFile = filename;
+      return dict;
     } catch (IOException e) {
       Log.error("Cannot load dictionary file", e);      
       return null;
     }
   } 
   
+  protected interface VariableTask {
+    public void run(Variable var);
+  }
+  
   protected class CodebookPage {
     String name;
     String alias;
@@ -1120,6 +1391,7 @@ public class DataSet {
     int algo;
     int size;
     boolean order;
+    SliceBatch batch;
     
     SortTask(int size) {
       this(QUICKSORT, size);
@@ -1219,17 +1491,12 @@ public class DataSet {
         float score = scores.get(col);
         if (0 <= score) return score;  
         Variable vx = columns.get(col);
-        DataSlice2D slice = getSlice(vx, sortVar, sortRanges, size);
-        if (slice.missing < sortMissingThreshold) {
-          if (project.sortMethod == Project.SIMILARITY) {
-            score = Similarity.calculate(slice, sortPValue, project);
-          } else if (project.sortMethod == Project.PVALUE) { 
-            float[] res = PValue.calculate(slice, project);
-            score = PValue.getScore(slice, res[1]);
-          }
-        } else {
-          score = 0f;  
+        if (batch == null) {
+          batch = new SliceBatch(sortVar, sortRanges, keyVar, getSampler(), size);
         }
+        DataSlice2D slice = getSlice(vx, sortVar, sortRanges, size, batch);
+        score = DataSet.this.getScore(slice);
+        if (isInterrupted()) return -1;
         scores.set(col, score);
         nonthreadedCount++;
         return score;        
@@ -2,29 +2,33 @@
 
 package miralib.data;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
 
 import miralib.math.Numbers;
-import miralib.shannon.BinOptimizer;
-import processing.data.TableRow;
 
 /**
  * 1-dimensional data slice, i.e.: all the (normalized) data values for a single
- * variable from the rows that satisfy the range conditions. 
+ * variable from the rows that satisfy the range conditions. The values are 
+ * stored in parallel arrays, where only the first size() elements are used.
  *
  */
 
 public class DataSlice1D {
   public Variable varx;
   public DataRanges ranges;
-  public ArrayList<Value1D> values;
+  public double[] x, w;
+  public int[] rows;       // Rows of the values, null if the slice is not taken from the data
+  public Variable varl;    // Variable that labels the values, null if there is none
   public long countx;
-  public int binx;
   public float missing;
+  protected DataSource data;
+  protected int size;
   
   public DataSlice1D(Variable varx, DataRanges ranges) {
     this.varx = varx;
-    this.values = new ArrayList<Value1D>();
+    allocate(16);
     
     // Create a copy of the ranges, because they can change after the slice 
     // has been constructed    
@@ -36,28 +40,98 @@ public class DataSlice1D {
   }
   
   public DataSlice1D(DataSource data, Variable varx, DataRanges ranges, Variable varl, int maxSize) {
+    this(data, varx, ranges, varl, null, maxSize);
+  }
+  
+  /**
+   * Takes the values from the rows selected by the ranges, sampled with the 
+   * given sampler when maxSize is smaller than the number of rows (a new 
+   * random order is used if the sampler is null). 
+   */
+  public DataSlice1D(DataSource data, Variable varx, DataRanges ranges, 
+                     Variable varl, RowSampler sampler, int maxSize) {
     this.varx = varx;
-    this.values = new ArrayList<Value1D>();
     
     // Create a copy of the ranges, because they can change after the slice 
-    // has been constructed    
+    // has been constructed. The selected rows are computed on the original
+    // ranges first, so they are shared by all the slices
+    ranges.getSelection(data);
     this.ranges = new DataRanges(ranges);
     
-    init(data, varl, maxSize);
+    init(data, varl, sampler, maxSize);
   } 
   
+  /**
+   * Returns the values of the rows that would be in a slice of size maxSize
+   * taken with the same sampler, so it can only be used with slices taken 
+   * from the data. The missing fraction is the one of the whole slice.
+   */
+  public DataSlice1D sample(int maxSize, RowSampler sampler) {
+    int[] picked = new int[size];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (sampler.sampled(rows[i], maxSize)) picked[count++] = i;
+    }
+    DataSlice1D sample = new DataSlice1D(varx, ranges);
+    sample.allocate(count);
+    if (rows != null) sample.rows = new int[count];
+    sample.varl = varl;
+    sample.data = data;
+    double wsum = 0;
+    for (int n = 0; n < count; n++) {
+      int i = picked[n];
+      sample.x[n] = x[i];
+      sample.w[n] = w[i];
+      if (rows != null) sample.rows[n] = rows[i];
+      wsum += w[i];
+    }
+    sample.size = count;
+    sample.countx = countx;
+    sample.missing = missing;
+    double factor = count / wsum;
+    if (Numbers.different(factor, 1)) {
+      sample.normalizeWeights(factor);
+    }
+    return sample;
+  }
+  
   public void dispose() {
-    values.clear();
+    allocate(0);
   } 
   
-  public void add(Value1D value) {
-    values.add(value);
+  /**
+   * Returns the label of the i-th value, which is formatted from the row only 
+   * when requested.
+   */
+  public String getLabel(int i) {
+    return varl == null || rows == null ? null : varl.formatValue(data, rows[i]);
   }
-
-  public Value1D add(double x, double w) {
-    Value1D value = new Value1D(x, w);
-    values.add(value);
-    return value;
+  
+  /**
+   * Resolution of the values of varx in their range, or -1 if it is not known
+   * because the slice is not taken from the data.
+   */
+  public double getResolution() {
+    return data == null ? -1 : varx.getResolution(data, ranges.get(varx));
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Adds a value and returns its index.
+   */
+  public int add(double valx, double weight) {
+    if (size == x.length) {
+      int capacity = Math.max(16, 2 * size);
+      x = Arrays.copyOf(x, capacity);
+      w = Arrays.copyOf(w, capacity);
+      if (rows != null) rows = Arrays.copyOf(rows, capacity);
+    }
+    x[size] = valx;
+    w[size] = weight;
+    return size++;
   }
 
   public boolean empty() {
@@ -74,8 +148,8 @@ public class DataSlice1D {
   } 
   
   public void normalizeWeights(double factor) {
-    for (Value1D val: values) {
-      val.w *= factor;
+    for (int i = 0; i < size; i++) {
+      w[i] *= factor;
     }
   }
   
@@ -83,43 +157,57 @@ public class DataSlice1D {
     double mean = 0;
     double meanSq = 0;
     double std = 0; 
-    for (Value1D val: values) {
-      double x = val.x * val.w;
+    for (int i = 0; i < size; i++) {
+      double x = this.x[i] * w[i];
       mean += x;
       meanSq += x * x;
     }
-    mean /= values.size();
-    meanSq /= values.size();
+    mean /= size;
+    meanSq /= size;
     std = Math.sqrt(Math.max(0, meanSq - mean * mean));
     return new double[] {mean, std};
   }
 
-  public void calculateBins(int method) {
-    binx = BinOptimizer.calculate(this, method);
-  }
-
-  protected void init(DataSource data, Variable varl, int maxSize) {
+  protected void init(DataSource data, Variable varl, RowSampler sampler, int maxSize) {
+    int rcount = data.getRowCount();
+    BitSet selected = ranges.getSelection(data);
+    int[] rows = new int[selected.cardinality()];
     int ntot = 0;
+    if (maxSize < rcount) {
+      // The sample is formed by the selected rows within the first maxSize 
+      // positions of the random order
+      if (sampler == null) sampler = new RowSampler(rcount, new Random().nextLong());
+      for (int r = selected.nextSetBit(0); r >= 0; r = selected.nextSetBit(r + 1)) {
+        if (sampler.sampled(r, maxSize)) rows[ntot++] = r;
+      }
+    } else {
+      for (int r = selected.nextSetBit(0); r >= 0; r = selected.nextSetBit(r + 1)) {
+        rows[ntot++] = r;
+      }
+    }
+    // The values are read into the arrays of the slice, and the ones with 
+    // missing data are removed afterwards
+    allocate(ntot);
+    varx.getValues(data, rows, ntot, ranges.get(varx), x);
+    this.rows = rows;
+    this.varl = varl;
+    this.data = data;
+    
     int nmis = 0;
     double wsum = 0;
-    int rcount = data.getRowCount();
-    float p = (float)maxSize / (float)rcount;
-    for (int r = 0; r < rcount; r++) {
-      if (p < 1 && p < Numbers.random()) continue;
-      TableRow row = data.getRow(r);       
-      if (!DataSet.insideRanges(row, ranges)) continue;
-      ntot++;      
-      double valx = varx.getValue(row, ranges);
-      double w = varx.getWeight(row);
-      if (valx < 0 || w < 0) {
+    for (int i = 0; i < ntot; i++) {
+      int r = rows[i];
+      double valx = x[i];
+      double weight = varx.getWeight(data, r);
+      if (valx < 0 || weight < 0) {
         nmis++;
         continue;
       }      
-      Value1D val = add(valx, w);  
-      if (varl != null && val != null) {
-        val.label = varl.formatValue(row);        
-      }      
-      wsum += w;
+      x[size] = valx;
+      w[size] = weight;
+      rows[size] = r;
+      size++;
+      wsum += weight;
     }
     long countx = varx.getCount(ranges);
     setCount(countx);
@@ -129,4 +217,11 @@ public class DataSlice1D {
       normalizeWeights(factor);  
     }    
   }
+  
+  protected void allocate(int capacity) {
+    x = new double[capacity];
+    w = new double[capacity];
+    rows = null;
+    size = 0;
+  }
 }
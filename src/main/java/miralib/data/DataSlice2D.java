@@ -2,32 +2,35 @@
 
 package miralib.data;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
 
-import miralib.shannon.BinOptimizer;
-import processing.data.TableRow;
 import miralib.math.Numbers;
 import miralib.utils.Project;
 
 /**
  * 2-dimensional data slice, i.e.: all the (normalized) data value pairs for two 
- * variables from the rows that satisfy the range conditions. 
+ * variables from the rows that satisfy the range conditions. The values are 
+ * stored in parallel arrays, where only the first size() elements are used.
  *
  */
 
 public class DataSlice2D {
   public Variable varx, vary;
   public DataRanges ranges;
-  public ArrayList<Value2D> values;
+  public double[] x, y, w;
+  public int[] rows;       // Rows of the values, null if the slice is not taken from the data
+  public Variable varl;    // Variable that labels the values, null if there is none
   public long countx, county;
-  public int binx, biny;
   public float missing;
+  protected DataSource data;
+  protected int size;
   
   public DataSlice2D(Variable varx, Variable vary, DataRanges ranges) {
     this.varx = varx;
     this.vary = vary;
-    this.values = new ArrayList<Value2D>();
+    allocate(16);
     
     // Create a copy of the ranges, because they can change after the slice 
     // has been constructed.    
@@ -40,49 +43,146 @@ public class DataSlice2D {
   
   public DataSlice2D(DataSource data, Variable varx, Variable vary, 
                      DataRanges ranges, Variable varl, int maxSize) {
+    this(data, varx, vary, ranges, varl, null, maxSize);
+  }
+  
+  /**
+   * Takes the values from the rows selected by the ranges, sampled with the 
+   * given sampler when maxSize is smaller than the number of rows (a new 
+   * random order is used if the sampler is null). 
+   */
+  public DataSlice2D(DataSource data, Variable varx, Variable vary, 
+                     DataRanges ranges, Variable varl, RowSampler sampler, 
+                     int maxSize) {
     this.varx = varx;
     this.vary = vary;
-    this.values = new ArrayList<Value2D>();
     
     // Create a copy of the ranges, because they can change after the slice 
-    // has been constructed.    
+    // has been constructed. The selected rows are computed on the original
+    // ranges first, so they are shared by all the slices
+    ranges.getSelection(data);
     this.ranges = new DataRanges(ranges);
     
-    init(data, varl, maxSize);
+    init(data, varl, sampler, maxSize);
   }  
   
-  public DataSlice2D shuffle() {
-    ArrayList<Value1D> valuesx = new ArrayList<Value1D>();
-    ArrayList<Value1D> valuesy = new ArrayList<Value1D>();    
-    for (Value2D val: values) {
-      valuesx.add(new Value1D(val.x, val.w));
-      valuesy.add(new Value1D(val.y, val.w));
-    }
-    Collections.shuffle(valuesx);
-    Collections.shuffle(valuesy);
+  /**
+   * Takes the values from the given rows, which are not copied and so can't
+   * be shared. The ranges are not copied either. Used by SliceBatch, which 
+   * reads the rows and the values of vary only once for all the slices.
+   */
+  protected DataSlice2D(DataSource data, Variable varx, Variable vary, 
+                        DataRanges ranges, Variable varl, int[] rows, 
+                        double[] yvalues) {
+    this.varx = varx;
+    this.vary = vary;
+    this.ranges = ranges;
+    init(data, varl, rows, yvalues);
+  }
+  
+  public DataSlice2D shuffle(long seed) {
+    // The x and y values are shuffled independently, each one along with its
+    // weight
+    Random random = new Random(seed);
+    int[] permx = permutation(size, random);
+    int[] permy = permutation(size, random);
     DataSlice2D shuffled = new DataSlice2D(varx, vary, ranges);
-
-    for (int n = 0; n < values.size(); n++) {
-      shuffled.add(new Value2D(valuesx.get(n), valuesy.get(n))); 
+    shuffled.allocate(size);
+    for (int n = 0; n < size; n++) {
+      int i = permx[n];
+      int j = permy[n];
+      shuffled.add(x[i], y[j], w[i] * w[j]); 
     }    
     shuffled.countx = countx;
     shuffled.county = county;
     shuffled.missing = missing;
+    shuffled.data = data;
     return shuffled;  
   }
   
+  /**
+   * Returns the values of the rows that would be in a slice of size maxSize
+   * taken with the same sampler, so it can only be used with slices taken 
+   * from the data. The missing fraction is the one of the whole slice.
+   */
+  public DataSlice2D sample(int maxSize, RowSampler sampler) {
+    int[] picked = new int[size];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (sampler.sampled(rows[i], maxSize)) picked[count++] = i;
+    }
+    DataSlice2D sample = new DataSlice2D(varx, vary, ranges);
+    sample.allocate(count);
+    if (rows != null) sample.rows = new int[count];
+    sample.varl = varl;
+    sample.data = data;
+    double wsum = 0;
+    for (int n = 0; n < count; n++) {
+      int i = picked[n];
+      sample.x[n] = x[i];
+      sample.y[n] = y[i];
+      sample.w[n] = w[i];
+      if (rows != null) sample.rows[n] = rows[i];
+      wsum += w[i];
+    }
+    sample.size = count;
+    sample.countx = countx;
+    sample.county = county;
+    sample.missing = missing;
+    double factor = count / wsum;
+    if (Numbers.different(factor, 1)) {
+      sample.normalizeWeights(factor);
+    }
+    return sample;
+  }
+  
   public void dispose() {
-    values.clear();
+    allocate(0);
   }
   
-  public void add(Value2D value) {
-    values.add(value);
+  /**
+   * Returns the label of the i-th value, which is formatted from the row only 
+   * when requested.
+   */
+  public String getLabel(int i) {
+    return varl == null || rows == null ? null : varl.formatValue(data, rows[i]);
   }
-
-  public Value2D add(double x, double y, double w) {
-    Value2D value = new Value2D(x, y, w);
-    values.add(value);
-    return value;
+  
+  /**
+   * Resolution of the values of varx in their range, or -1 if it is not known
+   * because the slice is not taken from the data.
+   */
+  public double getResolutionX() {
+    return data == null ? -1 : varx.getResolution(data, ranges.get(varx));
+  }
+  
+  /**
+   * Resolution of the values of vary in their range, or -1 if it is not known
+   * because the slice is not taken from the data.
+   */
+  public double getResolutionY() {
+    return data == null ? -1 : vary.getResolution(data, ranges.get(vary));
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Adds a value and returns its index.
+   */
+  public int add(double valx, double valy, double weight) {
+    if (size == x.length) {
+      int capacity = Math.max(16, 2 * size);
+      x = Arrays.copyOf(x, capacity);
+      y = Arrays.copyOf(y, capacity);
+      w = Arrays.copyOf(w, capacity);
+      if (rows != null) rows = Arrays.copyOf(rows, capacity);
+    }
+    x[size] = valx;
+    y[size] = valy;
+    w[size] = weight;
+    return size++;
   }  
 
   public boolean empty() {
@@ -125,8 +225,8 @@ public class DataSlice2D {
   }
   
   public void normalizeWeights(double factor) {
-    for (Value2D val: values) {
-      val.w *= factor;
+    for (int i = 0; i < size; i++) {
+      w[i] *= factor;
     }
   }
   
@@ -134,13 +234,13 @@ public class DataSlice2D {
     double mean = 0;
     double meanSq = 0;
     double std = 0; 
-    for (Value2D val: values) { 
-      double x = val.x * val.w;
+    for (int i = 0; i < size; i++) { 
+      double x = this.x[i] * w[i];
       mean += x;
       meanSq += x * x;
     }
-    mean /= values.size();
-    meanSq /= values.size();
+    mean /= size;
+    meanSq /= size;
     std = Math.sqrt(Math.max(0, meanSq - mean * mean));
     return new double[] {mean, std};
   }
@@ -149,33 +249,37 @@ public class DataSlice2D {
     double mean = 0;
     double meanSq = 0;
     double std = 0; 
-    for (Value2D val: values) { 
-      double y = val.y * val.w;
+    for (int i = 0; i < size; i++) { 
+      double y = this.y[i] * w[i];
       mean += y;
       meanSq += y * y;
     }
-    mean /= values.size();
-    meanSq /= values.size();
+    mean /= size;
+    meanSq /= size;
     std = Math.sqrt(Math.max(0, meanSq - mean * mean));
     return new double[] {mean, std};
   }    
 
   public DataSlice1D getSliceX() {
     DataSlice1D slice = new DataSlice1D(varx, ranges);
-    for (Value2D val: values) {
-      slice.add(val.x, val.w);
+    slice.allocate(size);
+    for (int i = 0; i < size; i++) {
+      slice.add(x[i], w[i]);
     }
     slice.setCount(countx);
+    slice.data = data;
     slice.setMissing(missing);
     return slice;
   }
   
   public DataSlice1D getSliceY() {
     DataSlice1D slice = new DataSlice1D(vary, ranges);
-    for (Value2D val: values) {
-      slice.add(val.y, val.w);
+    slice.allocate(size);
+    for (int i = 0; i < size; i++) {
+      slice.add(y[i], w[i]);
     }
     slice.setCount(county);
+    slice.data = data;
     slice.setMissing(missing);
     return slice;
   }
@@ -184,43 +288,51 @@ public class DataSlice2D {
     return new ContingencyTable(this, binx, biny);
   }
 
-  public ContingencyTable getContingencyTable() {
-    return new ContingencyTable(this, binx, biny);
-  }
-
   public ContingencyTable getContingencyTable(int binAlgorithm) {
     return new ContingencyTable(this, binAlgorithm);
   }
 
-  public void calculateBins(int binAlgorithm) {
-    int[] res = BinOptimizer.calculate(this, binAlgorithm);
-    binx = res[0];
-    biny = res[1];
+  protected void init(DataSource data, Variable varl, RowSampler sampler, int maxSize) {
+    init(data, varl, selectRows(data, ranges, sampler, maxSize), null);
   }
-
-  protected void init(DataSource data, Variable varl, int maxSize) {
-    int ntot = 0;
+  
+  /**
+   * Initializes the slice from the given rows, which are used as the rows of
+   * the slice and so are modified. If yvalues is not null, it has the values of
+   * vary in those rows, already read with the ranges.
+   */
+  protected void init(DataSource data, Variable varl, int[] rows, double[] yvalues) {
+    int ntot = rows.length;
+    // The values are read into the arrays of the slice, and the ones with 
+    // missing data are removed afterwards
+    allocate(ntot);
+    varx.getValues(data, rows, ntot, ranges.get(varx), x);
+    if (yvalues == null) {
+      vary.getValues(data, rows, ntot, ranges.get(vary), y);
+    } else {
+      System.arraycopy(yvalues, 0, y, 0, ntot);
+    }
+    this.rows = rows;
+    this.varl = varl;
+    this.data = data;
+    
     int nmis = 0;
     double wsum = 0;
-    int rcount = data.getRowCount();
-    float p = (float)maxSize / (float)rcount;
-    for (int r = 0; r < rcount; r++) {
-      if (p < 1 && p < Numbers.random()) continue;
-      TableRow row = data.getRow(r);        
-      if (!DataSet.insideRanges(row, ranges)) continue;
-      ntot++;
-      double valx = varx.getValue(row, ranges);
-      double valy = vary.getValue(row, ranges);
-      double w = Variable.getWeight(row, varx, vary);
-      if (valx < 0 || valy < 0 || w < 0) {
+    for (int i = 0; i < ntot; i++) {
+      int r = rows[i];
+      double valx = x[i];
+      double valy = y[i];
+      double weight = Variable.getWeight(data, r, varx, vary);
+      if (valx < 0 || valy < 0 || weight < 0) {
         nmis++;
         continue;
       }
-      Value2D val = add(valx, valy, w);
-      if (varl != null && val != null) {
-        val.label = varl.formatValue(row);        
-      }
-      wsum += w;
+      x[size] = valx;
+      y[size] = valy;
+      w[size] = weight;
+      rows[size] = r;
+      size++;
+      wsum += weight;
     }
     long countx = varx.getCount(ranges);
     long county = vary.getCount(ranges);    
@@ -231,4 +343,51 @@ public class DataSlice2D {
       normalizeWeights(factor);
     }
   }
+  
+  /**
+   * Returns the rows selected by the ranges, sampled with the given sampler 
+   * when maxSize is smaller than the number of rows (a new random order is 
+   * used if the sampler is null). 
+   */
+  static protected int[] selectRows(DataSource data, DataRanges ranges, 
+                                    RowSampler sampler, int maxSize) {
+    int rcount = data.getRowCount();
+    BitSet selected = ranges.getSelection(data);
+    int[] rows = new int[selected.cardinality()];
+    int ntot = 0;
+    if (maxSize < rcount) {
+      // The sample is formed by the selected rows within the first maxSize 
+      // positions of the random order
+      if (sampler == null) sampler = new RowSampler(rcount, new Random().nextLong());
+      for (int r = selected.nextSetBit(0); r >= 0; r = selected.nextSetBit(r + 1)) {
+        if (sampler.sampled(r, maxSize)) rows[ntot++] = r;
+      }
+      rows = Arrays.copyOf(rows, ntot);
+    } else {
+      for (int r = selected.nextSetBit(0); r >= 0; r = selected.nextSetBit(r + 1)) {
+        rows[ntot++] = r;
+      }
+    }
+    return rows;
+  }
+  
+  protected void allocate(int capacity) {
+    x = new double[capacity];
+    y = new double[capacity];
+    w = new double[capacity];
+    rows = null;
+    size = 0;
+  }
+  
+  static protected int[] permutation(int count, Random random) {
+    int[] perm = new int[count];
+    for (int i = 0; i < count; i++) perm[i] = i;
+    for (int i = count - 1; 0 < i; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = perm[i];
+      perm[i] = perm[j];
+      perm[j] = tmp;
+    }
+    return perm;
+  }
 }
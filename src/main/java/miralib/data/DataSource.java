@@ -2,6 +2,7 @@ package miralib.data;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.BitSet;
 
 import processing.data.TableRow;
 
@@ -14,4 +15,34 @@ public interface DataSource {
   public int getRowCount();
   public TableRow getRow(int row);
   public boolean save(File file, String options) throws IOException;
-}
\ No newline at end of file
+  
+  // Bulk access to the columns, implementations should return the actual 
+  // storage arrays when possible, so callers must not modify them.
+  public int[] getIntColumn(int col);
+  public long[] getLongColumn(int col);
+  public float[] getFloatColumn(int col);
+  public double[] getDoubleColumn(int col);
+  public String[] getStringColumn(int col);
+  
+  // Values of the categories in a category column, indexed by the codes 
+  // returned by getIntColumn(), where negative codes denote missing values.
+  public String[] getCategories(int col);
+  
+  // Date columns are stored as milliseconds in a long column, with the rows 
+  // that have missing (or invalid) dates given by this bitset.
+  public BitSet getMissingRows(int col);
+  
+  // Range of the values in a column when it is stored along with the data, 
+  // using the type of the column: min and max for numerical and date columns,
+  // and the category codes in order of appearance for category columns. 
+  // Returns null when the range needs to be computed from the rows.
+  public Object getColumnBounds(int col);
+  
+  // Summaries of the blocks of ColumnTable.BLOCK_SIZE rows in a column, so 
+  // whole blocks can be skipped or accepted when selecting rows: the min and
+  // max of each block one after the other for numerical and date columns, 
+  // and a BitSet per block with the category codes present in it (shifted by
+  // one, the first bit is set if there are missing values). Returns null 
+  // when the column has no summaries.
+  public Object getBlockBounds(int col);
+}
@@ -3,11 +3,10 @@
 package miralib.data;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 import org.joda.time.DateTime;
 
-import processing.data.TableRow;
-
 public class DateRange extends Range {
   protected DateTime mind, maxd;
   
@@ -62,31 +61,61 @@ public class DateRange extends Range {
     if (maxd == null) maxd = new DateTime("2099-12-31").withTimeAtStartOfDay();
   }
 
+  public void setBounds(long[] bounds) {
+    reset();
+    if (bounds.length == 2) {
+      mind = new DateTime(bounds[0]);
+      maxd = new DateTime(bounds[1]);
+    }
+  }
+  
   public void reset() {
     if (mind == null) mind = new DateTime("2099-12-31").withTimeAtStartOfDay();
     if (maxd == null) maxd = new DateTime("1900-01-01").withTimeAtStartOfDay();
   }
 
-  public void update(TableRow row) {
-    int idx = var.getIndex();
-    String value = row.getString(idx);
-    DateTime dat = DateVariable.parse(value);
-    if (dat != null) {
-      if (dat.compareTo(mind) < 0) mind = new DateTime(dat);
-      if (0 < dat.compareTo(maxd)) maxd = new DateTime(dat);      
-    }    
+  public void update(DataSource data, int row) {
+    if (data.getMissingRows(var.getIndex()).get(row)) return;
+    long millis = data.getLongColumn(var.getIndex())[row];
+    if (millis < mind.getMillis()) mind = new DateTime(millis);
+    if (maxd.getMillis() < millis) maxd = new DateTime(millis);
   }
-
-  public boolean inside(TableRow row) {
-    int idx = var.getIndex();
-    String value = row.getString(idx);
-    DateTime dat = DateVariable.parse(value);
-    if (dat != null) {
-      return 0 <= dat.compareTo(mind) && dat.compareTo(maxd) <= 0;       
+  
+  public boolean inside(DataSource data, int row) {
+    if (data.getMissingRows(var.getIndex()).get(row)) return false;
+    long millis = data.getLongColumn(var.getIndex())[row];
+    return mind.getMillis() <= millis && millis <= maxd.getMillis();
+  }
+  
+  public int select(DataSource data, int[] rows, int count) {
+    long[] column = data.getLongColumn(var.getIndex());
+    BitSet missing = data.getMissingRows(var.getIndex());
+    long min = mind.getMillis();
+    long max = maxd.getMillis();
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      int r = rows[i];
+      long millis = column[r];
+      if (!missing.get(r) && min <= millis && millis <= max) rows[n++] = r;
     }
-    return false;
+    return n;
   }
-
+  
+  protected int inside(DataSource data, Object blocks, int block) {
+    long[] bounds = (long[])blocks;
+    long min = bounds[2 * block];
+    long max = bounds[2 * block + 1];
+    if (max < mind.getMillis() || maxd.getMillis() < min) return NONE_INSIDE;
+    if (mind.getMillis() <= min && max <= maxd.getMillis()) {
+      // The missing dates are not included in the bounds of the block
+      int start = block * ColumnTable.BLOCK_SIZE;
+      int end = Math.min(start + ColumnTable.BLOCK_SIZE, data.getRowCount());
+      int r = data.getMissingRows(var.getIndex()).nextSetBit(start);
+      if (r < 0 || end <= r) return ALL_INSIDE;
+    }
+    return SOME_INSIDE;
+  }
+  
   public double getMin() {
     return mind.getMillis();
   }
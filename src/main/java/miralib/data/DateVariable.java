@@ -3,6 +3,8 @@
 package miralib.data;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 
 import miralib.utils.Log;
 
@@ -10,7 +12,6 @@ import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
 
-import processing.data.TableRow;
 
 public class DateVariable extends Variable {
   
@@ -40,6 +41,16 @@ public class DateVariable extends Variable {
     }    
   }
 
+  public void initRange(DataSource data) {
+    Object bounds = data.getColumnBounds(index);
+    if (bounds == null) {
+      int[] count = new int[1];
+      bounds = ColumnTable.computeBounds(data, index, count);
+      missingCount = count[0];
+    }
+    ((DateRange)range).setBounds((long[])bounds);
+  }
+  
   public Range createRange(double val0, double val1) {
     Range range = new DateRange(this);    
     range.set(val0, val1, false);
@@ -84,9 +95,12 @@ public class DateVariable extends Variable {
     return false;
   }
 
-  public boolean missing(TableRow row) {
-    String value = row.getString(index);
-    return value == null || value.equals(missingString);
+  public boolean missing(DataSource data, int row) {
+    return data.getMissingRows(index).get(row);
+  }
+
+  protected BitSet findMissingRows(DataSource data) {
+    return data.getMissingRows(index);
   }
 
   public double getValue(String str, boolean normalized) {
@@ -100,14 +114,9 @@ public class DateVariable extends Variable {
     }    
   }    
   
-  public double getValue(TableRow row, Range sel, boolean normalized) {
-    String value = row.getString(index);
-    
-    DateTime date = parse(value); 
-    if (date == null) return -1; 
-      
-    long millis = date.getMillis();
-    
+  public double getValue(DataSource data, int row, Range sel, boolean normalized) {
+    if (data.getMissingRows(index).get(row)) return -1; 
+    long millis = data.getLongColumn(index)[row];
     if (normalized) {
       if (sel == null) {
         return range.normalize(millis);
@@ -118,14 +127,26 @@ public class DateVariable extends Variable {
       return millis;
     }    
   }
-
-  public String formatValue(TableRow row) {
-    String value = row.getString(index);    
-    DateTime date = parse(value); 
-    if (date == null) return "missing";    
+  
+  public void getValues(DataSource data, int[] rows, int count, Range sel, 
+                        double[] values) {
+    Range drange = sel == null ? range : sel;
+    double min = drange.getMin();
+    double max = drange.getMax();
+    long[] column = data.getLongColumn(index);
+    BitSet missing = data.getMissingRows(index);
+    for (int i = 0; i < count; i++) {
+      int r = rows[i];
+      values[i] = missing.get(r) ? -1 : Range.normalize(column[r], min, max);
+    }
+  }
+  
+  public String formatValue(DataSource data, int row) {
+    if (data.getMissingRows(index).get(row)) return "missing";
+    DateTime date = new DateTime(data.getLongColumn(index)[row]);
     return print(date);
   }
-
+  
   public String formatValue(double value, boolean normalized) {    
     long millis = normalized ? Math.round(range.denormalize(value)) : (long)value;
     DateTime date = new DateTime(millis);    
@@ -170,7 +191,7 @@ public class DateVariable extends Variable {
     } 
   }
   
-  protected double getWeightImpl(TableRow row) {
+  protected double getWeightImpl(DataSource data, int row) {
     String msg = "Datet variable " + name + " (" + alias + ") cannot be used as a weight";
     Log.error(msg, new RuntimeException(msg));
     return 0;
@@ -190,6 +211,36 @@ public class DateVariable extends Variable {
     return date;    
   }
 
+  /**
+   * Parses all the values of a date column at once, returning the dates as 
+   * milliseconds. The rows with missing or invalid dates are set in the 
+   * missing bitset and get NumericalVariable.MISSING_LONG as their value.
+   */
+  public static long[] parse(String[] values, String missingStr, BitSet missing) {
+    // Dates tend to repeat a lot, so each distinct string is parsed only once
+    HashMap<String, Long> parsed = new HashMap<String, Long>();
+    long[] millis = new long[values.length];
+    for (int r = 0; r < values.length; r++) {
+      String str = values[r];
+      Long value = null;
+      if (str != null && !str.equals(missingStr)) {
+        value = parsed.get(str);
+        if (value == null && !parsed.containsKey(str)) {
+          DateTime date = parse(str);
+          value = date == null ? null : date.getMillis();
+          parsed.put(str, value);
+        }
+      }
+      if (value == null) {
+        millis[r] = NumericalVariable.MISSING_LONG;
+        missing.set(r);
+      } else {
+        millis[r] = value;
+      }
+    }
+    return millis;
+  }
+  
   public static DateTime parsePrint(String str) {
     DateTime date = null;
     try {    
@@ -204,6 +255,10 @@ public class DateVariable extends Variable {
     return dat.toString(fmtPrint);    
   }
   
+  public static String printParse(DateTime dat) {
+    return dat.toString(fmtParse);    
+  }
+  
   public static void setParsePattern(String pattern) {
     fmtParse = DateTimeFormat.forPattern(pattern);      
   }
@@ -4,8 +4,6 @@ package miralib.data;
 
 import java.util.ArrayList;
 
-import processing.data.TableRow;
-
 /**
  * Dummy ranger for variables not included in display/calculations (for example
  * string variables).
@@ -26,9 +24,9 @@ public class DummyRange extends Range {
   public void set(ArrayList<String> values) {}
   public void set(String... values) {}
   public void reset() {}
-  public void update(TableRow row) {}
+  public void update(DataSource data, int row) {}
 
-  public boolean inside(TableRow row) {
+  public boolean inside(DataSource data, int row) {
     return false;
   }
   
@@ -0,0 +1,503 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import miralib.utils.Log;
+import processing.data.Table;
+
+/**
+ * Data source backed by a file in Mirador's columnar binary format. Opening
+ * the file only reads the header with the column directory (titles, types,
+ * categories and ranges), so it takes time proportional to the number of
+ * columns. The data of each column is memory-mapped and copied into its array
+ * the first time the column is requested, so different columns can be loaded
+ * at the same time by different threads. The copy is needed because the bulk
+ * accessors of DataSource return arrays: the file pages are shared across 
+ * runs through the OS cache, but the columns in use take the same heap memory
+ * as in a table loaded from text. Columns that are never requested are never 
+ * read.
+ *
+ * Layout of the file (big-endian): magic number, format version, row count,
+ * column count, missing string, and the column directory, followed by the
+ * data of all the columns. Each entry in the directory holds the title, type,
+ * bounds, categories, summaries of the blocks of rows, and position of the 
+ * column data in the file.
+ *
+ */
+
+public class MappedTable extends ColumnTable {
+  final static public int MAGIC   = 0x4D495241; // MIRA
+  final static public int VERSION = 4;
+
+  final static protected Charset UTF8 = Charset.forName("UTF-8");
+  final static protected int BUFFER_SIZE = 1 << 20;
+
+  protected File file;
+  protected long[] offsets;
+  protected long[] lengths;
+  protected Object[] bounds;
+  protected AtomicReferenceArray<Object> loaded;
+  protected Object[] locks;
+  // The file is opened once for all the columns, and closed when all of 
+  // them are loaded
+  protected RandomAccessFile raf;
+  protected int loadedCount;
+
+  protected MappedTable(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Opens a binary file, returns null if it was written by a different
+   * version of the format.
+   */
+  static public MappedTable open(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+      MappedTable table = new MappedTable(file);
+      table.rowCount = in.readInt();
+      int count = in.readInt();
+      table.missingString = in.readBoolean() ? in.readUTF() : null;
+      table.columnTitles = new String[count];
+      table.columnTypes = new int[count];
+      table.categories = new String[count][];
+      table.missingRows = new BitSet[count];
+      table.columnIndices = new HashMap<String, Integer>();
+      table.offsets = new long[count];
+      table.lengths = new long[count];
+      table.bounds = new Object[count];
+      table.blockBounds = new Object[count];
+      table.loaded = new AtomicReferenceArray<Object>(count);
+      table.locks = new Object[count];
+      for (int col = 0; col < count; col++) table.locks[col] = new Object();
+      for (int col = 0; col < count; col++) {
+        String title = in.readBoolean() ? in.readUTF() : null;
+        int type = in.readInt();
+        table.columnTitles[col] = title;
+        table.columnTypes[col] = type;
+        if (title != null) table.columnIndices.put(title, col);
+        if (type == Table.CATEGORY) {
+          String[] values = new String[in.readInt()];
+          for (int i = 0; i < values.length; i++) values[i] = in.readUTF();
+          table.categories[col] = values;
+        }
+        table.bounds[col] = readBounds(in, type);
+        table.blockBounds[col] = readBlockBounds(in, type);
+        table.offsets[col] = in.readLong();
+        table.lengths[col] = in.readLong();
+      }
+      return table;
+    } finally {
+      in.close();
+    }
+  }
+
+  static public boolean write(ColumnTable table, File file) throws IOException {
+    int count = table.getColumnCount();
+    int rows = table.getRowCount();
+
+    // Sizes of the column data, the string columns are measured without 
+    // encoding them, and are encoded one value at a time when written
+    long[] lengths = new long[count];
+    for (int col = 0; col < count; col++) {
+      int type = table.getColumnType(col);
+      if (type == Table.INT || type == Table.FLOAT || type == Table.CATEGORY) {
+        lengths[col] = 4L * rows;
+      } else if (type == Table.LONG || type == Table.DOUBLE) {
+        lengths[col] = 8L * rows;
+      } else if (type == MiraTable.DATE) {
+        lengths[col] = 8L * rows + 8L * wordCount(rows);
+      } else {
+        String[] values = table.getStringColumn(col);
+        lengths[col] = 4L * rows;
+        for (int r = 0; r < rows; r++) {
+          if (values[r] == null) continue;
+          lengths[col] += utf8Length(values[r]);
+        }
+      }
+    }
+
+    // The size of the header doesn't depend on the offsets, so it can be
+    // measured first and written afterwards with the final offsets.
+    Object[] bounds = new Object[count];
+    Object[] blocks = new Object[count];
+    for (int col = 0; col < count; col++) {
+      bounds[col] = computeBounds(table, col, null);
+      blocks[col] = table.getBlockBounds(col);
+    }
+    long[] offsets = new long[count];
+    long offset = writeHeader(table, bounds, blocks, offsets, lengths).length;
+    for (int col = 0; col < count; col++) {
+      offsets[col] = offset;
+      offset += lengths[col];
+    }
+    byte[] header = writeHeader(table, bounds, blocks, offsets, lengths);
+
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      FileChannel channel = out.getChannel();
+      channel.write(ByteBuffer.wrap(header));
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      for (int col = 0; col < count; col++) {
+        int type = table.getColumnType(col);
+        if (type == Table.INT || type == Table.CATEGORY) {
+          int[] values = table.getIntColumn(col);
+          for (int r = 0; r < rows; r++) {
+            if (buffer.remaining() < 4) flush(channel, buffer);
+            buffer.putInt(values[r]);
+          }
+        } else if (type == Table.LONG) {
+          writeLongs(channel, buffer, table.getLongColumn(col));
+        } else if (type == Table.FLOAT) {
+          float[] values = table.getFloatColumn(col);
+          for (int r = 0; r < rows; r++) {
+            if (buffer.remaining() < 4) flush(channel, buffer);
+            buffer.putFloat(values[r]);
+          }
+        } else if (type == Table.DOUBLE) {
+          double[] values = table.getDoubleColumn(col);
+          for (int r = 0; r < rows; r++) {
+            if (buffer.remaining() < 8) flush(channel, buffer);
+            buffer.putDouble(values[r]);
+          }
+        } else if (type == MiraTable.DATE) {
+          writeLongs(channel, buffer, table.getLongColumn(col));
+          long[] words = table.getMissingRows(col).toLongArray();
+          long[] padded = new long[wordCount(rows)];
+          System.arraycopy(words, 0, padded, 0, Math.min(words.length, padded.length));
+          writeLongs(channel, buffer, padded);
+        } else {
+          String[] values = table.getStringColumn(col);
+          for (int r = 0; r < rows; r++) {
+            if (buffer.remaining() < 4) flush(channel, buffer);
+            buffer.putInt(values[r] == null ? -1 : utf8Length(values[r]));
+          }
+          for (int r = 0; r < rows; r++) {
+            if (values[r] == null) continue;
+            byte[] bytes = values[r].getBytes(UTF8);
+            if (buffer.remaining() < bytes.length) flush(channel, buffer);
+            if (buffer.remaining() < bytes.length) {
+              ByteBuffer big = ByteBuffer.wrap(bytes);
+              while (big.hasRemaining()) channel.write(big);
+            } else {
+              buffer.put(bytes);
+            }
+          }
+        }
+      }
+      flush(channel, buffer);
+    } finally {
+      out.close();
+    }
+    return true;
+  }
+
+  protected Object getColumn(int col) {
+    Object column = loaded.get(col);
+    return column != null ? column : loadColumn(col);
+  }
+
+  public BitSet getMissingRows(int col) {
+    if (columnTypes[col] != MiraTable.DATE) return null;
+    getColumn(col);
+    return missingRows[col];
+  }
+
+  public Object getColumnBounds(int col) {
+    return bounds[col];
+  }
+
+  protected Object loadColumn(int col) {
+    synchronized (locks[col]) {
+      Object column = loaded.get(col);
+      if (column != null) return column;
+      column = readColumn(col);
+      if (column != null) {
+        loaded.set(col, column);
+        columnLoaded();
+      }
+      return column;
+    }
+  }
+  
+  synchronized protected FileChannel getChannel() throws IOException {
+    if (raf == null) raf = new RandomAccessFile(file, "r");
+    return raf.getChannel();
+  }
+  
+  synchronized protected void columnLoaded() {
+    loadedCount++;
+    if (loadedCount == columnTypes.length && raf != null) {
+      try {
+        raf.close();
+      } catch (IOException e) {
+        Log.error("Cannot close " + file, e);
+      }
+      raf = null;
+    }
+  }
+
+  protected Object readColumn(int col) {
+    Object column = null;
+
+    try {
+      // Mapping a region of the shared channel is safe from several threads,
+      // and the mapping stays valid after the file is closed
+      MappedByteBuffer buffer = getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                 offsets[col], lengths[col]);
+      int type = columnTypes[col];
+      if (type == Table.INT || type == Table.CATEGORY) {
+        int[] values = new int[rowCount];
+        buffer.asIntBuffer().get(values);
+        column = values;
+      } else if (type == Table.LONG) {
+        long[] values = new long[rowCount];
+        buffer.asLongBuffer().get(values);
+        column = values;
+      } else if (type == Table.FLOAT) {
+        float[] values = new float[rowCount];
+        buffer.asFloatBuffer().get(values);
+        column = values;
+      } else if (type == Table.DOUBLE) {
+        double[] values = new double[rowCount];
+        buffer.asDoubleBuffer().get(values);
+        column = values;
+      } else if (type == MiraTable.DATE) {
+        long[] values = new long[rowCount];
+        long[] words = new long[wordCount(rowCount)];
+        buffer.asLongBuffer().get(values);
+        buffer.position(8 * rowCount);
+        buffer.asLongBuffer().get(words);
+        missingRows[col] = BitSet.valueOf(words);
+        column = values;
+      } else {
+        int[] sizes = new int[rowCount];
+        buffer.asIntBuffer().get(sizes);
+        buffer.position(4 * rowCount);
+        String[] values = new String[rowCount];
+        byte[] bytes = new byte[0];
+        for (int r = 0; r < rowCount; r++) {
+          if (sizes[r] < 0) continue;
+          if (bytes.length < sizes[r]) bytes = new byte[sizes[r]];
+          buffer.get(bytes, 0, sizes[r]);
+          values[r] = new String(bytes, 0, sizes[r], UTF8);
+        }
+        column = values;
+      }
+    } catch (IOException e) {
+      Log.error("Cannot read column " + columnTitles[col] + " from " + file, e);
+      return null;
+    }
+    return column;
+  }
+
+  static protected byte[] writeHeader(ColumnTable table, Object[] bounds, 
+                                      Object[] blocks, long[] offsets, 
+                                      long[] lengths)
+                                      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(table.getRowCount());
+    out.writeInt(table.getColumnCount());
+    writeString(out, table.getMissingString());
+    for (int col = 0; col < table.getColumnCount(); col++) {
+      int type = table.getColumnType(col);
+      writeString(out, table.getColumnTitle(col));
+      out.writeInt(type);
+      if (type == Table.CATEGORY) {
+        String[] values = table.getCategories(col);
+        out.writeInt(values.length);
+        for (String value: values) out.writeUTF(value);
+      }
+      writeBounds(out, type, bounds[col]);
+      writeBlockBounds(out, type, blocks[col]);
+      out.writeLong(offsets[col]);
+      out.writeLong(lengths[col]);
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  static protected void writeBounds(DataOutputStream out, int type, Object bounds)
+                                    throws IOException {
+    if (type == Table.INT) {
+      int[] values = (int[])bounds;
+      out.writeInt(values[0]);
+      out.writeInt(values[1]);
+    } else if (type == Table.LONG) {
+      long[] values = (long[])bounds;
+      out.writeLong(values[0]);
+      out.writeLong(values[1]);
+    } else if (type == Table.FLOAT) {
+      float[] values = (float[])bounds;
+      out.writeFloat(values[0]);
+      out.writeFloat(values[1]);
+    } else if (type == Table.DOUBLE) {
+      double[] values = (double[])bounds;
+      out.writeDouble(values[0]);
+      out.writeDouble(values[1]);
+    } else if (type == MiraTable.DATE) {
+      long[] values = (long[])bounds;
+      out.writeInt(values.length);
+      for (long value: values) out.writeLong(value);
+    } else if (type == Table.CATEGORY) {
+      int[] values = (int[])bounds;
+      out.writeInt(values.length);
+      for (int value: values) out.writeInt(value);
+    }
+  }
+
+  static protected Object readBounds(DataInputStream in, int type)
+                                     throws IOException {
+    if (type == Table.INT) {
+      return new int[] {in.readInt(), in.readInt()};
+    } else if (type == Table.LONG) {
+      return new long[] {in.readLong(), in.readLong()};
+    } else if (type == Table.FLOAT) {
+      return new float[] {in.readFloat(), in.readFloat()};
+    } else if (type == Table.DOUBLE) {
+      return new double[] {in.readDouble(), in.readDouble()};
+    } else if (type == MiraTable.DATE) {
+      long[] values = new long[in.readInt()];
+      for (int i = 0; i < values.length; i++) values[i] = in.readLong();
+      return values;
+    } else if (type == Table.CATEGORY) {
+      int[] values = new int[in.readInt()];
+      for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+      return values;
+    }
+    return null;
+  }
+
+  static protected void writeBlockBounds(DataOutputStream out, int type, 
+                                         Object blocks) throws IOException {
+    if (type == Table.INT) {
+      int[] values = (int[])blocks;
+      out.writeInt(values.length);
+      for (int value: values) out.writeInt(value);
+    } else if (type == Table.LONG || type == MiraTable.DATE) {
+      long[] values = (long[])blocks;
+      out.writeInt(values.length);
+      for (long value: values) out.writeLong(value);
+    } else if (type == Table.FLOAT) {
+      float[] values = (float[])blocks;
+      out.writeInt(values.length);
+      for (float value: values) out.writeFloat(value);
+    } else if (type == Table.DOUBLE) {
+      double[] values = (double[])blocks;
+      out.writeInt(values.length);
+      for (double value: values) out.writeDouble(value);
+    } else if (type == Table.CATEGORY) {
+      BitSet[] values = (BitSet[])blocks;
+      out.writeInt(values.length);
+      for (BitSet value: values) {
+        long[] words = value.toLongArray();
+        out.writeInt(words.length);
+        for (long word: words) out.writeLong(word);
+      }
+    }
+  }
+
+  static protected Object readBlockBounds(DataInputStream in, int type) 
+                                          throws IOException {
+    if (type == Table.INT) {
+      int[] values = new int[in.readInt()];
+      for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+      return values;
+    } else if (type == Table.LONG || type == MiraTable.DATE) {
+      long[] values = new long[in.readInt()];
+      for (int i = 0; i < values.length; i++) values[i] = in.readLong();
+      return values;
+    } else if (type == Table.FLOAT) {
+      float[] values = new float[in.readInt()];
+      for (int i = 0; i < values.length; i++) values[i] = in.readFloat();
+      return values;
+    } else if (type == Table.DOUBLE) {
+      double[] values = new double[in.readInt()];
+      for (int i = 0; i < values.length; i++) values[i] = in.readDouble();
+      return values;
+    } else if (type == Table.CATEGORY) {
+      BitSet[] values = new BitSet[in.readInt()];
+      for (int i = 0; i < values.length; i++) {
+        long[] words = new long[in.readInt()];
+        for (int j = 0; j < words.length; j++) words[j] = in.readLong();
+        values[i] = BitSet.valueOf(words);
+      }
+      return values;
+    }
+    return null;
+  }
+
+  static protected void writeString(DataOutputStream out, String str)
+                                    throws IOException {
+    out.writeBoolean(str != null);
+    if (str != null) out.writeUTF(str);
+  }
+
+  static protected void writeLongs(FileChannel channel, ByteBuffer buffer,
+                                   long[] values) throws IOException {
+    for (int i = 0; i < values.length; i++) {
+      if (buffer.remaining() < 8) flush(channel, buffer);
+      buffer.putLong(values[i]);
+    }
+  }
+
+  static protected void flush(FileChannel channel, ByteBuffer buffer)
+                              throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) channel.write(buffer);
+    buffer.clear();
+  }
+
+  /**
+   * Number of bytes of the string encoded in UTF-8, same as the length of 
+   * getBytes(UTF8), where unpaired surrogates are replaced by one byte.
+   */
+  static protected int utf8Length(String str) {
+    int length = 0;
+    int n = str.length();
+    for (int i = 0; i < n; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && 
+                 Character.isLowSurrogate(str.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  static protected int wordCount(int rows) {
+    return (rows + 63) / 64;
+  }
+}
@@ -17,7 +17,7 @@ public class MiraDict extends Table implements DataDict {
     MiraTable table = new MiraTable();
     table.setColumnTypes(this);
     table.parseInput(input, options);
-    return (DataSource) table;
+    return new ColumnTable(table);
   }  
   
   @Override
@@ -33,6 +33,12 @@ public class MiraDict extends Table implements DataDict {
     for (int i = 0; i < table.getColumnCount(); i++) {
       table.dateColumns[i] = MiraTable.isDateColumn(table, i, missing);
     }
-    return (DataSource)table;    
+    return new ColumnTable(table);
   }  
+  
+  @Override
+  public DataSource typedSource(ChunkedParser parser) throws IOException {
+    parser.setColumnTypes(this);
+    return parser.parse(true);
+  }
 }
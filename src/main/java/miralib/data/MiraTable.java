@@ -4,12 +4,17 @@ package miralib.data;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import miralib.data.DataSet.CodebookPage;
+import miralib.math.DistinctCounter;
 import miralib.utils.Log;
 import processing.core.PApplet;
 import processing.data.Table;
@@ -25,8 +30,15 @@ public class MiraTable extends Table implements DataSource {
   
   boolean[] dateColumns;
   
+  // Parsed values of the date columns, created when first requested  
+  protected long[][] dateValues;
+  protected BitSet[] dateMissing;
+  
   final static protected int[] CHECK_FRACTION = {1, 2, 10, 100};
   
+  // Distinct values counted exactly when guessing the type of a column
+  final static protected int MAX_EXACT_DISTINCT = 4096;
+  
   {
     missingInt = Integer.MIN_VALUE;
     missingLong = Long.MIN_VALUE;
@@ -80,7 +92,47 @@ public class MiraTable extends Table implements DataSource {
     else return super.getColumnType(column);
   }  
   
+  /**
+   * Converts string columns into numerical columns with the same results as
+   * Table, but without throwing an exception for each value that is not a
+   * number. The values that are not numbers are set to null first, which the
+   * table turns into missing values, so it only parses valid numbers.
+   */
+  public void setColumnType(int column, int newType) {
+    boolean numerical = newType == INT || newType == LONG || 
+                        newType == FLOAT || newType == DOUBLE;
+    if (numerical && super.getColumnType(column) == STRING && 
+        hasColumnData(column)) {
+      int rows = getRowCount();
+      for (int row = 0; row < rows; row++) {
+        String value = getString(row, column);
+        if (value != null && !isNumber(value, newType)) {
+          setString(row, column, null);
+        }
+      }
+    }
+    super.setColumnType(column, newType);
+  }
+  
+  // A string is a number of the type if the table parses it into a value 
+  // other than missing, values that are missing either way don't matter
+  protected boolean isNumber(String value, int type) {
+    if (type == INT) {
+      return NumberScanner.parseInt(value, missingInt) != missingInt;
+    } else if (type == LONG) {
+      return NumberScanner.parseLong(value, missingLong) != missingLong;
+    } else if (type == FLOAT) {
+      return NumberScanner.parseFloat(value, missingFloat) != missingFloat;
+    } else {
+      return NumberScanner.parseDouble(value, missingDouble) != missingDouble;
+    }
+  }
+  
   public void setColumnType(int column, String columnType) {
+    setColumnType(column, parseColumnType(column, columnType));
+  }  
+  
+  static public int parseColumnType(int column, String columnType) {
     columnType = columnType.toLowerCase().trim();
     int type = -1;
     if (columnType.equals("string") || columnType.equals("date")) {
@@ -100,8 +152,8 @@ public class MiraTable extends Table implements DataSource {
                                          column + " in dictionary file\n" + 
                                          " is not a valid column type.");
     }
-    setColumnType(column, type);
-  }  
+    return type;
+  }
   
   public void parseInput(InputStream input, String options) throws IOException {
     super.parse(input, options);
@@ -121,32 +173,61 @@ public class MiraTable extends Table implements DataSource {
     } catch (IOException e) {
       Log.error("Cannot parse data", e);
     }
-    
-    // obtaining types from codebook, or trying to guess from data...
+    return guessedTypes(table, codebook, missing);
+  }
+  
+  static public MiraTable guessedTypes(final MiraTable table, 
+                                       final HashMap<String, CodebookPage> codebook, 
+                                       final String missing) {
+    // obtaining types from codebook, or trying to guess from data, each 
+    // column is independent from the others so they are processed in parallel
+    int proc = Runtime.getRuntime().availableProcessors();
+    ExecutorService pool = Executors.newFixedThreadPool(proc);
+    ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
     for (int i = 0; i < table.getColumnCount(); i++) {
-      String name = table.getColumnTitle(i);
-      if (name == null || name.equals("")) continue;
-      CodebookPage pg = codebook == null ? null : codebook.get(name);
-      if (pg == null) {
-        int guess = guessColumnType(table, i, missing);
-        table.setColumnType(i, guess);
-        table.dateColumns[i] = isDateColumn(table, i, missing);
-      } else {
-        table.setColumnType(i, pg.type);
-      }
-//    Log.message("Column " + i + " " + table.getColumnTitle(i) + ": " + guess  + " " + table.getColumnType(i));
+      final int col = i;
+      tasks.add(pool.submit(new Runnable() {
+        public void run() {
+          guessedType(table, col, codebook, missing);
+        }
+      }));
+    }
+    pool.shutdown();
+    try {
+      for (Future<?> task: tasks) task.get();
+    } catch (InterruptedException e) {
+      Log.error("Type guessing was interrupted", e);
+    } catch (ExecutionException e) {
+      Log.error("Cannot guess the column types", e);
     }
     
     return table;
   }
   
+  static protected void guessedType(MiraTable table, int i, 
+                                    HashMap<String, CodebookPage> codebook, 
+                                    String missing) {
+    String name = table.getColumnTitle(i);
+    if (name == null || name.equals("")) return;
+    CodebookPage pg = codebook == null ? null : codebook.get(name);
+    if (pg == null) {
+      int guess = guessColumnType(table, i, missing);
+      table.setColumnType(i, guess);
+      table.dateColumns[i] = isDateColumn(table, i, missing);
+    } else {
+      table.setColumnType(i, pg.type);
+    }
+//  Log.message("Column " + i + " " + table.getColumnTitle(i) + ": " + guess  + " " + table.getColumnType(i));
+  }
+  
   static protected int guessColumnType(Table table, int i, String missing) {
     int type0 = table.getColumnType(i);
     if (table.getColumnType(i) != Table.STRING) return type0;
     
     int[] typeCounts = {0, 0, 0, 0, 0};  // string, int, long, float, double
     float[] typeFracs = {0, 0, 0, 0, 0}; // string, int, long, float, double  
-    HashSet<String> diffValues = new HashSet<String>(); 
+    DistinctCounter diffValues = new DistinctCounter(MAX_EXACT_DISTINCT);
+    String[] values = table.getStringColumn(i);
     int count = 0;
     int tot = table.getRowCount();
     int step = 1;
@@ -154,19 +235,18 @@ public class MiraTable extends Table implements DataSource {
     else if (tot < 10000) step = CHECK_FRACTION[1];
     else if (tot < 100000) step = CHECK_FRACTION[2];
     else step = CHECK_FRACTION[3];
-    for (int n = 0; n < table.getRowCount(); n++) {      
-      if (n % step != 0) continue;
-      
-      TableRow row = table.getRow(n); 
-      String value = row.getString(i);
-      if (value.equals(missing)) continue;
+    for (int n = 0; n < values.length; n += step) {      
+      String value = values[n];
+      if (value == null || value.equals(missing)) continue;
       diffValues.add(value);
       count++;
       
-      if (isInt(value)) typeCounts[Table.INT]++;
-      else if (isFloat(value)) typeCounts[Table.FLOAT]++;
-      else if (isLong(value)) typeCounts[Table.LONG]++;
-      else if (isDouble(value)) typeCounts[Table.DOUBLE]++;
+      // Strings that are valid doubles are also valid floats, so double 
+      // columns are never guessed
+      char[] chars = value.toCharArray();
+      if (NumberScanner.isInt(chars, 0, chars.length)) typeCounts[Table.INT]++;
+      else if (NumberScanner.isFloat(chars, 0, chars.length)) typeCounts[Table.FLOAT]++;
+      else if (NumberScanner.isLong(chars, 0, chars.length)) typeCounts[Table.LONG]++;
       else typeCounts[Table.STRING]++;       
     }
     
@@ -182,7 +262,7 @@ public class MiraTable extends Table implements DataSource {
     
     if (min_fraction <= typeFracs[Table.STRING]) {
       // String or category 
-      if (diffValues.size() <= strcat_max_count) return Table.CATEGORY;
+      if (diffValues.count() <= strcat_max_count) return Table.CATEGORY;
       else return Table.STRING;
     } else {
       // Numerical or category
@@ -190,14 +270,14 @@ public class MiraTable extends Table implements DataSource {
           typeFracs[Table.LONG] < min_fraction && 
           typeFracs[Table.FLOAT] < min_fraction && 
           typeFracs[Table.DOUBLE] < min_fraction) {
-        if (diffValues.size() <= 5) return Table.CATEGORY;
+        if (diffValues.count() <= 5) return Table.CATEGORY;
         else return Table.INT;
       }
       if (min_fraction <= typeFracs[Table.LONG] && 
           typeFracs[Table.INT] < min_fraction && 
           typeFracs[Table.FLOAT] < min_fraction && 
           typeFracs[Table.DOUBLE] < min_fraction) {
-        if (diffValues.size() <= 5) return Table.CATEGORY;
+        if (diffValues.count() <= 5) return Table.CATEGORY;
         else return Table.LONG;      
       }
       if (min_fraction <= typeFracs[Table.FLOAT] && 
@@ -258,6 +338,100 @@ public class MiraTable extends Table implements DataSource {
   }
   
   
+  // The column getters return the storage arrays instead of copies whenever 
+  // the type of the column matches, so the data can be handed over to a 
+  // ColumnTable without duplicating it.
+  
+  public int[] getIntColumn(int col) {
+    int type = super.getColumnType(col);
+    if ((type == INT || type == CATEGORY) && hasColumnData(col)) {
+      return (int[])columns[col];
+    }
+    return super.getIntColumn(col);
+  }
+  
+  public long[] getLongColumn(int col) {
+    if (dateColumns[col]) return getDateValues(col);
+    if (super.getColumnType(col) == LONG && hasColumnData(col)) {
+      return (long[])columns[col];
+    }
+    return super.getLongColumn(col);
+  }
+  
+  public float[] getFloatColumn(int col) {
+    if (super.getColumnType(col) == FLOAT && hasColumnData(col)) {
+      return (float[])columns[col];
+    }
+    return super.getFloatColumn(col);
+  }
+  
+  public double[] getDoubleColumn(int col) {
+    if (super.getColumnType(col) == DOUBLE && hasColumnData(col)) {
+      return (double[])columns[col];
+    }
+    return super.getDoubleColumn(col);
+  }
+  
+  public String[] getStringColumn(int col) {
+    if (super.getColumnType(col) == STRING && hasColumnData(col)) {
+      return (String[])columns[col];
+    }
+    return super.getStringColumn(col);
+  }
+  
+  public BitSet getMissingRows(int col) {
+    if (!dateColumns[col]) return null;
+    getDateValues(col);
+    return dateMissing[col];
+  }
+  
+  synchronized protected long[] getDateValues(int col) {
+    if (dateValues == null || dateValues.length != columns.length) {
+      dateValues = new long[columns.length][];
+      dateMissing = new BitSet[columns.length];
+    }
+    if (dateValues[col] == null) {
+      String[] values = new String[getRowCount()];
+      for (int row = 0; row < values.length; row++) {
+        values[row] = getString(row, col);
+      }
+      dateMissing[col] = new BitSet(values.length);
+      dateValues[col] = DateVariable.parse(values, missingString, dateMissing[col]);
+    }
+    return dateValues[col];
+  }
+  
+  public Object getColumnBounds(int col) {
+    return null;
+  }
+  
+  public Object getBlockBounds(int col) {
+    return null;
+  }
+  
+  public String[] getCategories(int col) {
+    int[] codes = getIntColumn(col);
+    int count = 0;
+    for (int code: codes) count = Math.max(count, code + 1);
+    String[] categories = new String[count];
+    for (int row = 0; row < codes.length; row++) {
+      int code = codes[row];
+      if (0 <= code && categories[code] == null) {
+        categories[code] = getString(row, col);
+      }
+    }
+    return categories;
+  }
+  
+  protected boolean hasColumnData(int col) {
+    return Array.getLength(columns[col]) == getRowCount();
+  }
+  
+  void setColumnData(int col, Object data) {
+    columns[col] = data;
+  }
+  
+  
   protected void init() {
     super.init();
     dateColumns = new boolean[0];
@@ -307,38 +481,18 @@ public class MiraTable extends Table implements DataSource {
   }
   
   static protected boolean isInt(String str) {
-    try {
-      new Integer(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
+    return NumberScanner.isInt(str);
   }
 
   static protected boolean isLong(String str) {
-    try {
-      new Long(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
+    return NumberScanner.isLong(str);
   }
 
   static protected boolean isFloat(String str) {
-    try {
-      new Float(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
+    return NumberScanner.isFloat(str);
   }
 
   static protected boolean isDouble(String str) {
-    try {
-      new Double(str);
-      return true;
-    } catch (NumberFormatException e) {
-      return false; 
-    }  
+    return NumberScanner.isDouble(str);
   }
 }
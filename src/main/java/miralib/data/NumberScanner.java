@@ -0,0 +1,239 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import processing.core.PApplet;
+
+/**
+ * Hand-written recognition of numbers, accepting exactly the same strings as
+ * Integer.parseInt(), Long.parseLong() and Float.parseFloat(), but without
+ * throwing an exception for every value that is not a number. Those are very
+ * common when guessing the types of the columns or parsing missing values.
+ *
+ */
+
+public class NumberScanner {
+  // Results of scanInteger() for invalid numbers, and for strings with
+  // characters outside ASCII that could be digits in other scripts and are
+  // left to the JDK.
+  final static protected long INVALID = Long.MAX_VALUE;
+  final static protected long NON_ASCII = Long.MIN_VALUE;
+
+  static public boolean isInt(String str) {
+    return isInt(str.toCharArray(), 0, str.length());
+  }
+
+  static public boolean isInt(char[] c, int start, int end) {
+    long value = scanInteger(c, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    if (value == NON_ASCII) {
+      try {
+        Integer.parseInt(new String(c, start, end - start));
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return value != INVALID;
+  }
+
+  static public boolean isLong(String str) {
+    return isLong(str.toCharArray(), 0, str.length());
+  }
+
+  static public boolean isLong(char[] c, int start, int end) {
+    long value = scanLong(c, start, end);
+    if (value == NON_ASCII) {
+      try {
+        Long.parseLong(new String(c, start, end - start));
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return value != INVALID;
+  }
+
+  static public boolean isFloat(String str) {
+    return isFloat(str.toCharArray(), 0, str.length());
+  }
+
+  /**
+   * Follows the grammar of Float.parseFloat() and Double.parseDouble():
+   * optional whitespace and sign, then NaN, Infinity, a hexadecimal number
+   * with a binary exponent, or a decimal number with an optional exponent,
+   * both of them with an optional type suffix.
+   */
+  static public boolean isFloat(char[] c, int start, int end) {
+    while (start < end && c[start] <= ' ') start++;
+    while (start < end && c[end - 1] <= ' ') end--;
+    int i = start;
+    if (i < end && (c[i] == '-' || c[i] == '+')) i++;
+    if (i == end) return false;
+
+    if (c[i] == 'N') return matches(c, i, end, "NaN");
+    if (c[i] == 'I') return matches(c, i, end, "Infinity");
+    if (c[i] == '0' && i + 1 < end && (c[i + 1] == 'x' || c[i + 1] == 'X')) {
+      return isHexFloat(c, i + 2, end);
+    }
+
+    int digits = 0;
+    boolean point = false;
+    for (; i < end; i++) {
+      char ch = c[i];
+      if ('0' <= ch && ch <= '9') {
+        digits++;
+      } else if (ch == '.') {
+        if (point) return false;
+        point = true;
+      } else {
+        break;
+      }
+    }
+    if (digits == 0) return false;
+    if (i < end && (c[i] == 'e' || c[i] == 'E')) {
+      i = skipExponent(c, i + 1, end);
+      if (i == -1) return false;
+    }
+    return i == end || (i == end - 1 && isSuffix(c[i]));
+  }
+
+  static public boolean isDouble(String str) {
+    return isFloat(str);
+  }
+
+  /**
+   * Same result as PApplet.parseInt(), which drops the decimals.
+   */
+  static public int parseInt(String str, int missing) {
+    if (str == null) return missing;
+    return parseInt(str.toCharArray(), 0, str.length(), missing);
+  }
+
+  static public int parseInt(char[] c, int start, int end, int missing) {
+    for (int i = start; i < end; i++) {
+      if (c[i] == '.') {
+        end = i;
+        break;
+      }
+    }
+    long value = scanInteger(c, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    if (value == NON_ASCII) {
+      return PApplet.parseInt(new String(c, start, end - start), missing);
+    }
+    return value == INVALID ? missing : (int)value;
+  }
+
+  static public long parseLong(String str, long missing) {
+    if (str == null) return missing;
+    return parseLong(str.toCharArray(), 0, str.length(), missing);
+  }
+
+  static public long parseLong(char[] c, int start, int end, long missing) {
+    long value = scanLong(c, start, end);
+    if (value == NON_ASCII) {
+      try {
+        return Long.parseLong(new String(c, start, end - start));
+      } catch (NumberFormatException e) {
+        return missing;
+      }
+    }
+    return value == INVALID ? missing : value;
+  }
+
+  static public float parseFloat(String str, float missing) {
+    if (str == null || !isFloat(str)) return missing;
+    return Float.parseFloat(str);
+  }
+
+  static public float parseFloat(char[] c, int start, int end, float missing) {
+    if (!isFloat(c, start, end)) return missing;
+    return Float.parseFloat(new String(c, start, end - start));
+  }
+
+  static public double parseDouble(String str, double missing) {
+    if (str == null || !isFloat(str)) return missing;
+    return Double.parseDouble(str);
+  }
+
+  static public double parseDouble(char[] c, int start, int end, double missing) {
+    if (!isFloat(c, start, end)) return missing;
+    return Double.parseDouble(new String(c, start, end - start));
+  }
+
+  static protected long scanLong(char[] c, int start, int end) {
+    // Shorter numbers cannot overflow, the longer ones are left to the JDK
+    if (end - start < 19) return scanInteger(c, start, end, -Long.MAX_VALUE, Long.MAX_VALUE - 1);
+    for (int i = start; i < end; i++) {
+      char ch = c[i];
+      if ((ch < '0' || '9' < ch) && (i != start || (ch != '-' && ch != '+'))) {
+        return 127 < ch ? NON_ASCII : INVALID;
+      }
+    }
+    return NON_ASCII;
+  }
+
+  /**
+   * Parses an optionally signed decimal integer between min and max.
+   */
+  static protected long scanInteger(char[] c, int start, int end, long min, long max) {
+    if (start == end) return INVALID;
+    boolean negative = false;
+    int i = start;
+    if (c[i] == '-' || c[i] == '+') {
+      negative = c[i] == '-';
+      if (++i == end) return INVALID;
+    }
+    long value = 0;
+    for (; i < end; i++) {
+      char ch = c[i];
+      if (127 < ch) return NON_ASCII;
+      if (ch < '0' || '9' < ch) return INVALID;
+      value = 10 * value + (ch - '0');
+      if (max < value && !(negative && value == -min)) return INVALID;
+    }
+    return negative ? -value : value;
+  }
+
+  static protected boolean isHexFloat(char[] c, int i, int end) {
+    int digits = 0;
+    boolean point = false;
+    for (; i < end; i++) {
+      char ch = c[i];
+      if (Character.digit(ch, 16) != -1 && ch < 128) {
+        digits++;
+      } else if (ch == '.' && !point) {
+        point = true;
+      } else {
+        break;
+      }
+    }
+    // The binary exponent is mandatory
+    if (digits == 0 || i == end || (c[i] != 'p' && c[i] != 'P')) return false;
+    i = skipExponent(c, i + 1, end);
+    if (i == -1) return false;
+    return i == end || (i == end - 1 && isSuffix(c[i]));
+  }
+
+  /**
+   * Returns the position after the digits of the exponent, or -1 if there
+   * are none.
+   */
+  static protected int skipExponent(char[] c, int i, int end) {
+    if (i < end && (c[i] == '-' || c[i] == '+')) i++;
+    int first = i;
+    while (i < end && '0' <= c[i] && c[i] <= '9') i++;
+    return i == first ? -1 : i;
+  }
+
+  static protected boolean isSuffix(char ch) {
+    return ch == 'f' || ch == 'F' || ch == 'd' || ch == 'D';
+  }
+
+  static protected boolean matches(char[] c, int i, int end, String word) {
+    if (end - i != word.length()) return false;
+    for (int n = 0; n < word.length(); n++) {
+      if (c[i + n] != word.charAt(n)) return false;
+    }
+    return true;
+  }
+}
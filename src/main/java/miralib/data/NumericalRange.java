@@ -3,9 +3,10 @@
 package miralib.data;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+
 import miralib.math.Numbers;
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * Range for a numerical variable (a minimum and a maximum value).
@@ -111,6 +112,26 @@ public class NumericalRange extends Range {
     }
   }  
   
+  public void setBounds(Object bounds) {
+    if (type == Table.INT) {
+      int[] values = (int[])bounds;
+      mini = values[0];
+      maxi = values[1];
+    } else if (type == Table.LONG) {
+      long[] values = (long[])bounds;
+      minl = values[0];
+      maxl = values[1];
+    } else if (type == Table.FLOAT) {
+      float[] values = (float[])bounds;
+      minf = values[0];
+      maxf = values[1];
+    } else if (type == Table.DOUBLE) {
+      double[] values = (double[])bounds;
+      mind = values[0];
+      maxd = values[1];
+    }
+  }
+  
   public void reset() {
     if (type == Table.INT) {
       mini = Integer.MAX_VALUE;
@@ -127,46 +148,176 @@ public class NumericalRange extends Range {
     }
   }
   
-  public void update(TableRow row) {
+  public void update(DataSource data, int row) {
     int idx = var.getIndex();
     if (type == Table.INT) {
-      int value = row.getInt(idx);
+      int value = data.getIntColumn(idx)[row];
       mini = Math.min(mini, value);
       maxi = Math.max(maxi, value);
     } else if (type == Table.LONG) {
-      long value = row.getLong(idx);
+      long value = data.getLongColumn(idx)[row];
       minl = Math.min(minl, value);
       maxl = Math.max(maxl, value);      
     } else if (type == Table.FLOAT) {
-      float value = row.getFloat(idx);
+      float value = data.getFloatColumn(idx)[row];
       minf = Math.min(minf, value);
       maxf = Math.max(maxf, value);
     } else if (type == Table.DOUBLE) {
-      double value = row.getDouble(idx);
+      double value = data.getDoubleColumn(idx)[row];
       mind = Math.min(mind, value);
       maxd = Math.max(maxd, value);        
     }    
   }
   
-  public boolean inside(TableRow row) {
+  public boolean inside(DataSource data, int row) {
     int idx = var.getIndex();
     if (type == Table.INT) {
-      int v = row.getInt(idx);
+      int v = data.getIntColumn(idx)[row];
       return mini <= v && v <= maxi;
     } else if (type == Table.LONG) {
-      long v = row.getLong(idx);
+      long v = data.getLongColumn(idx)[row];
       return minl <= v && v <= maxl;
     } else if (type == Table.FLOAT) {
-      float v = row.getFloat(idx);
+      float v = data.getFloatColumn(idx)[row];
       return minf <= v && v <= maxf;
     } else if (type == Table.DOUBLE) {
-      double v = row.getDouble(idx);
+      double v = data.getDoubleColumn(idx)[row];
       return mind <= v && v <= maxd;
     } else {
       return false;
     }     
   }
   
+  public int select(DataSource data, int[] rows, int count) {
+    int idx = var.getIndex();
+    int n = 0;
+    if (type == Table.INT) {
+      int[] column = data.getIntColumn(idx);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        int v = column[r];
+        if (mini <= v && v <= maxi) rows[n++] = r;
+      }
+    } else if (type == Table.LONG) {
+      long[] column = data.getLongColumn(idx);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        long v = column[r];
+        if (minl <= v && v <= maxl) rows[n++] = r;
+      }
+    } else if (type == Table.FLOAT) {
+      float[] column = data.getFloatColumn(idx);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        float v = column[r];
+        if (minf <= v && v <= maxf) rows[n++] = r;
+      }
+    } else if (type == Table.DOUBLE) {
+      double[] column = data.getDoubleColumn(idx);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        double v = column[r];
+        if (mind <= v && v <= maxd) rows[n++] = r;
+      }
+    }
+    return n;
+  }
+  
+  /**
+   * Uses the sorted rows of the variable when they are available, so the 
+   * rows inside the range are found with two binary searches. Clustered 
+   * columns, where the summaries leave fewer rows to scan than the sorted 
+   * rows to set or clear, are still selected block by block.
+   */
+  public BitSet select(DataSource data) {
+    int[] sorted = ((NumericalVariable)var).requestSortedRows(data);
+    if (sorted == null) return super.select(data);
+    int count = sorted.length;
+    int first = search(data, sorted, false);
+    int last = search(data, sorted, true);
+    Object blocks = data.getBlockBounds(var.getIndex());
+    if (blocks != null && 
+        scanCount(data, blocks) < Math.min(last - first, count - (last - first))) {
+      return super.select(data);
+    }
+    BitSet selected = new BitSet(count);
+    if (first < last) {
+      if (last - first < count / 2) {
+        for (int i = first; i < last; i++) selected.set(sorted[i]);
+      } else {
+        // Wide ranges are faster to build by clearing the rows outside
+        selected.set(0, count);
+        for (int i = 0; i < first; i++) selected.clear(sorted[i]);
+        for (int i = last; i < count; i++) selected.clear(sorted[i]);
+      }
+    }
+    return selected;
+  }
+  
+  protected int inside(DataSource data, Object blocks, int block) {
+    boolean none, all;
+    if (type == Table.INT) {
+      int[] bounds = (int[])blocks;
+      int min = bounds[2 * block];
+      int max = bounds[2 * block + 1];
+      none = max < mini || maxi < min;
+      all = mini <= min && max <= maxi;
+    } else if (type == Table.LONG) {
+      long[] bounds = (long[])blocks;
+      long min = bounds[2 * block];
+      long max = bounds[2 * block + 1];
+      none = max < minl || maxl < min;
+      all = minl <= min && max <= maxl;
+    } else if (type == Table.FLOAT) {
+      // NaNs are never inside, and they make the comparisons fail
+      float[] bounds = (float[])blocks;
+      float min = bounds[2 * block];
+      float max = bounds[2 * block + 1];
+      none = min != min || max < minf || maxf < min;
+      all = minf <= min && max <= maxf;
+    } else if (type == Table.DOUBLE) {
+      double[] bounds = (double[])blocks;
+      double min = bounds[2 * block];
+      double max = bounds[2 * block + 1];
+      none = min != min || max < mind || maxd < min;
+      all = mind <= min && max <= maxd;
+    } else {
+      return SOME_INSIDE;
+    }
+    return none ? NONE_INSIDE : (all ? ALL_INSIDE : SOME_INSIDE);
+  }
+  
+  /**
+   * Returns the number of sorted rows with values smaller than the minimum,
+   * or not larger than the maximum when upper is true.
+   */
+  protected int search(DataSource data, int[] sorted, boolean upper) {
+    int idx = var.getIndex();
+    int lo = 0;
+    int hi = sorted.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int r = sorted[mid];
+      boolean below;
+      if (type == Table.INT) {
+        int v = data.getIntColumn(idx)[r];
+        below = upper ? v <= maxi : v < mini;
+      } else if (type == Table.LONG) {
+        long v = data.getLongColumn(idx)[r];
+        below = upper ? v <= maxl : v < minl;
+      } else if (type == Table.FLOAT) {
+        float v = data.getFloatColumn(idx)[r];
+        below = upper ? v <= maxf : v < minf;
+      } else {
+        double v = data.getDoubleColumn(idx)[r];
+        below = upper ? v <= maxd : v < mind;
+      }
+      if (below) lo = mid + 1;
+      else hi = mid;
+    }
+    return lo;
+  }
+  
   public double getMin() {
     if (type == Table.INT) {
       return mini;
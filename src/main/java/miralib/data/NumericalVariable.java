@@ -3,10 +3,14 @@
 package miralib.data;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import miralib.math.Numbers;
+import miralib.utils.Log;
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * Subclass of Variable to represent a numerical variable (integer, long, float
@@ -28,6 +32,16 @@ public class NumericalVariable extends Variable {
   protected float[] spValFloat;
   protected double[] spValDouble;  
   
+  // Smaller columns are not worth sorting, scanning them is fast enough
+  final static protected int MIN_SORTED_ROWS = 100000;
+  
+  // The indices are built one at a time by a single background thread, so 
+  // only one column and its sorting buffers are in memory at once
+  static protected ExecutorService sortPool;
+  
+  protected volatile int[] sortedRows;
+  protected boolean sorting;
+  
   public NumericalVariable(String name, int index, int type) {
     super(name, index);
     this.type = type;
@@ -66,7 +80,80 @@ public class NumericalVariable extends Variable {
           spValDouble[i] = Numbers.parseDouble(spval[i]);     
         }      
       }      
+      // The special values are also missing
+      missingCount = -1;
+      missingRows = null;
+    }
+  }
+  
+  public void initRange(DataSource data) {
+    if (hasSpecialValues()) {
+      super.initRange(data);
+      return;
+    }
+    Object bounds = data.getColumnBounds(index);
+    if (bounds == null) {
+      int[] count = new int[1];
+      bounds = ColumnTable.computeBounds(data, index, count);
+      missingCount = count[0];
     }
+    ((NumericalRange)range).setBounds(bounds);
+  }
+  
+  /**
+   * Rows ordered by their values, so the rows inside a range can be found 
+   * with binary searches, or null if the index is not built.
+   */
+  public int[] getSortedRows() {
+    return sortedRows;
+  }
+  
+  /**
+   * Returns the sorted rows, and starts building them in the background if 
+   * they are not available yet. This is only requested by the ranges that 
+   * select rows, so the index is built only for the variables that have one.
+   */
+  public int[] requestSortedRows(final DataSource data) {
+    int[] rows = sortedRows;
+    if (rows == null && MIN_SORTED_ROWS <= data.getRowCount()) {
+      synchronized (this) {
+        if (!sorting && sortedRows == null) {
+          sorting = true;
+          getSortPool().execute(new Runnable() {
+            public void run() {
+              try {
+                sortedRows = ColumnTable.sortRows(data, index);
+              } catch (RuntimeException ex) {
+                Log.error("Cannot sort the rows of " + name, ex);
+              } finally {
+                synchronized (NumericalVariable.this) {
+                  sorting = false;
+                }
+              }
+            }
+          });
+        }
+      }
+    }
+    return rows;
+  }
+  
+  static synchronized protected ExecutorService getSortPool() {
+    if (sortPool == null) {
+      sortPool = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return sortPool;
+  }
+  
+  public boolean hasSpecialValues() {
+    return spValInt != null || spValLong != null || 
+           spValFloat != null || spValDouble != null;
   }
   
   public Range createRange(double val0, double val1) {
@@ -113,22 +200,38 @@ public class NumericalVariable extends Variable {
     return false;
   }  
   
-  public boolean missing(TableRow row) {
-    boolean miss = true;
+  public boolean missing(DataSource data, int row) {
+    return getMissingRows(data).get(row);
+  }
+  
+  protected BitSet findMissingRows(DataSource data) {
+    BitSet rows = new BitSet();
     if (type == Table.INT) {
-      int value = row.getInt(index);
-      miss = value == MISSING_INT || specialValue(value);
+      int[] column = data.getIntColumn(index);
+      for (int r = 0; r < column.length; r++) {
+        int value = column[r];
+        if (value == MISSING_INT || specialValue(value)) rows.set(r);
+      }
     } else if (type == Table.LONG) {
-      long value = row.getLong(index); 
-      miss = value == MISSING_LONG || specialValue(value);
+      long[] column = data.getLongColumn(index);
+      for (int r = 0; r < column.length; r++) {
+        long value = column[r];
+        if (value == MISSING_LONG || specialValue(value)) rows.set(r);
+      }
     } else if (type == Table.FLOAT) {
-      float value = row.getFloat(index);
-      miss = value == MISSING_FLOAT || specialValue(value);      
+      float[] column = data.getFloatColumn(index);
+      for (int r = 0; r < column.length; r++) {
+        float value = column[r];
+        if (value == MISSING_FLOAT || specialValue(value)) rows.set(r);
+      }
     } else if (type == Table.DOUBLE) {
-      double value = row.getDouble(index);
-      miss = value == MISSING_DOUBLE || specialValue(value);
+      double[] column = data.getDoubleColumn(index);
+      for (int r = 0; r < column.length; r++) {
+        double value = column[r];
+        if (value == MISSING_DOUBLE || specialValue(value)) rows.set(r);
+      }
     }
-    return miss;
+    return rows;
   }
   
   public double getValue(String str, boolean normalized) {
@@ -150,24 +253,17 @@ public class NumericalVariable extends Variable {
     }    
   }
   
-  public double getValue(TableRow row, Range sel, boolean normalized) {
+  public double getValue(DataSource data, int row, Range sel, boolean normalized) {
+    if (missing(data, row)) return -1;
     double value = 0;
     if (type == Table.INT) {
-      int ivalue = row.getInt(index);
-      if (ivalue == MISSING_INT || specialValue(ivalue)) return -1;
-      value = ivalue;      
+      value = data.getIntColumn(index)[row];
     } else if (type == Table.LONG) {
-      long lvalue = row.getLong(index);
-      if (value == MISSING_LONG || specialValue(lvalue)) return -1;
-      value = lvalue;      
+      value = data.getLongColumn(index)[row];
     } else if (type == Table.FLOAT) {
-      float fvalue = row.getFloat(index);
-      if (value == MISSING_FLOAT || specialValue(fvalue)) return -1;
-      value = fvalue;      
+      value = data.getFloatColumn(index)[row];
     } else if (type == Table.DOUBLE) {
-      double dvalue = row.getDouble(index);
-      if (value == MISSING_DOUBLE || specialValue(dvalue)) return -1;
-      value = dvalue;      
+      value = data.getDoubleColumn(index)[row];
     }
     
     if (normalized) {
@@ -181,23 +277,49 @@ public class NumericalVariable extends Variable {
     }
   }
   
-  public String formatValue(TableRow row) {
+  public void getValues(DataSource data, int[] rows, int count, Range sel, 
+                        double[] values) {
+    Range nrange = sel == null ? range : sel;
+    double min = nrange.getMin();
+    double max = nrange.getMax();
+    BitSet missing = getMissingRows(data);
+    if (type == Table.INT) {
+      int[] column = data.getIntColumn(index);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        values[i] = missing.get(r) ? -1 : Range.normalize(column[r], min, max);
+      }
+    } else if (type == Table.LONG) {
+      long[] column = data.getLongColumn(index);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        values[i] = missing.get(r) ? -1 : Range.normalize(column[r], min, max);
+      }
+    } else if (type == Table.FLOAT) {
+      float[] column = data.getFloatColumn(index);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        values[i] = missing.get(r) ? -1 : Range.normalize(column[r], min, max);
+      }
+    } else if (type == Table.DOUBLE) {
+      double[] column = data.getDoubleColumn(index);
+      for (int i = 0; i < count; i++) {
+        int r = rows[i];
+        values[i] = missing.get(r) ? -1 : Range.normalize(column[r], min, max);
+      }
+    }
+  }
+  
+  public String formatValue(DataSource data, int row) {
+    if (missing(data, row)) return "missing";
     if (type == Table.INT) {
-      int value = row.getInt(index);
-      if (value == MISSING_INT || specialValue(value)) return "missing";
-      return Numbers.nfc(value);
+      return Numbers.nfc(data.getIntColumn(index)[row]);
     } else if (type == Table.LONG) {
-      long value = row.getLong(index);
-      if (value == MISSING_LONG || specialValue(value)) return "missing";
-      return Numbers.nfc(value);
+      return Numbers.nfc(data.getLongColumn(index)[row]);
     } else if (type == Table.FLOAT) {
-      float value = row.getFloat(index);
-      if (value == MISSING_FLOAT || specialValue(value)) return "missing";
-      return Numbers.nfc(value, 2);
+      return Numbers.nfc(data.getFloatColumn(index)[row], 2);
     } else if (type == Table.DOUBLE) {
-      double value = row.getDouble(index);
-      if (value == MISSING_DOUBLE || specialValue(value)) return "missing";
-      return Numbers.nfc(value, 2);
+      return Numbers.nfc(data.getDoubleColumn(index)[row], 2);
     } else {
       return "";
     }
@@ -291,15 +413,15 @@ public class NumericalVariable extends Variable {
     }    
   }
   
-  protected double getWeightImpl(TableRow row) {
+  protected double getWeightImpl(DataSource data, int row) {
     if (type == Table.INT) {
-      return row.getInt(index) ;
+      return data.getIntColumn(index)[row];
     } else if (type == Table.LONG) {      
-      return row.getLong(index);
+      return data.getLongColumn(index)[row];
     } else if (type == Table.FLOAT) {
-      return row.getFloat(index);      
+      return data.getFloatColumn(index)[row];      
     } else if (type == Table.DOUBLE) {
-      return row.getDouble(index);
+      return data.getDoubleColumn(index)[row];
     } else {
       return 1d;
     }    
@@ -3,8 +3,7 @@
 package miralib.data;
 
 import java.util.ArrayList;
-
-import processing.data.TableRow;
+import java.util.BitSet;
 
 /**
  * Base abstract class to define variable ranges.
@@ -12,6 +11,11 @@ import processing.data.TableRow;
  */
 
 abstract public class Range {
+  // How much of a block of rows is inside the range
+  final static protected int NONE_INSIDE = 0;
+  final static protected int SOME_INSIDE = 1;
+  final static protected int ALL_INSIDE  = 2;
+  
   public Variable var;
   
   public Range(Variable var) {
@@ -28,9 +32,72 @@ abstract public class Range {
   abstract public void set(String... values);
   
   abstract public void reset();
-  abstract public void update(TableRow row);
+  abstract public void update(DataSource data, int row);
     
-  abstract public boolean inside(TableRow row);
+  abstract public boolean inside(DataSource data, int row);
+  
+  /**
+   * Removes from the first count elements of rows the ones that fall outside
+   * of this range, and returns how many rows are left.
+   */
+  public int select(DataSource data, int[] rows, int count) {
+    int n = 0;
+    for (int i = 0; i < count; i++) {
+      int r = rows[i];
+      if (inside(data, r)) rows[n++] = r;
+    }
+    return n;
+  }
+  
+  /**
+   * Returns the rows of the data that are inside this range. The blocks of 
+   * rows that the summaries of the column place entirely inside or outside of
+   * the range are not scanned.
+   */
+  public BitSet select(DataSource data) {
+    int count = data.getRowCount();
+    int size = ColumnTable.BLOCK_SIZE;
+    Object blocks = data.getBlockBounds(var.getIndex());
+    BitSet selected = new BitSet(count);
+    int[] rows = new int[Math.min(count, size)];
+    for (int start = 0; start < count; start += size) {
+      int end = Math.min(start + size, count);
+      int inside = blocks == null ? SOME_INSIDE : inside(data, blocks, start / size);
+      if (inside == ALL_INSIDE) {
+        selected.set(start, end);
+      } else if (inside == SOME_INSIDE) {
+        int n = 0;
+        for (int r = start; r < end; r++) rows[n++] = r;
+        n = select(data, rows, n);
+        for (int i = 0; i < n; i++) selected.set(rows[i]);
+      }
+    }
+    return selected;
+  }
+  
+  /**
+   * Number of rows that select(data) needs to scan, the ones in blocks that 
+   * are only partially inside the range.
+   */
+  protected long scanCount(DataSource data, Object blocks) {
+    int count = data.getRowCount();
+    int size = ColumnTable.BLOCK_SIZE;
+    long n = 0;
+    for (int start = 0; start < count; start += size) {
+      if (inside(data, blocks, start / size) == SOME_INSIDE) {
+        n += Math.min(start + size, count) - start;
+      }
+    }
+    return n;
+  }
+  
+  /**
+   * Tells if the rows in a block are inside the range, using the summaries 
+   * from DataSource.getBlockBounds().
+   */
+  protected int inside(DataSource data, Object blocks, int block) {
+    return SOME_INSIDE;
+  }
   
   abstract public double getMin();
   abstract public double getMax();
@@ -55,12 +122,14 @@ abstract public class Range {
   abstract public double constrain(double value);  
   
   protected double normalizeImpl(double value) {
-    double min = getMin(); 
-    double max = getMax();    
+    return normalize(value, getMin(), getMax());
+  }  
+  
+  static protected double normalize(double value, double min, double max) {
     double f = (value - min) / (max - min);
     if (f < 0 || 1 < f) f = -1; // This is important, the -1 is used to identify missing values in the dataset.
     return f;
-  }  
+  }
   
   protected double constrainImpl(double value) {
     return (value < getMin()) ? getMin() : ((value > getMax()) ? getMax() : value);
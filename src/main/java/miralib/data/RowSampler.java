@@ -0,0 +1,39 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.Random;
+
+/**
+ * Random order of the rows of the data, fixed by a seed. The sample of size n
+ * is formed by the rows in the first n positions of the order, so samples of
+ * different sizes are nested, and taking them doesn't involve any random
+ * generator shared between threads.
+ *
+ */
+
+public class RowSampler {
+  protected int[] ranks;
+
+  public RowSampler(int rowCount, long seed) {
+    // The inverse of a random permutation is also random, so the shuffled
+    // array is used directly as the position of each row in the order
+    Random random = new Random(seed);
+    ranks = new int[rowCount];
+    for (int r = 0; r < rowCount; r++) ranks[r] = r;
+    for (int r = rowCount - 1; 0 < r; r--) {
+      int i = random.nextInt(r + 1);
+      int tmp = ranks[r];
+      ranks[r] = ranks[i];
+      ranks[i] = tmp;
+    }
+  }
+
+  public int getRowCount() {
+    return ranks.length;
+  }
+
+  public boolean sampled(int row, int size) {
+    return ranks[row] < size;
+  }
+}
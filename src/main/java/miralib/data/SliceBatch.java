@@ -0,0 +1,44 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+/**
+ * Builds the slices of many variables against a common one (the sort variable,
+ * for instance). The selected rows and the values of the common variable are
+ * read only once, the first time a slice is requested, and then shared by all
+ * the slices, so each new slice only needs to read its own column.
+ *
+ */
+
+public class SliceBatch {
+  public Variable vary;
+  public DataRanges ranges;
+  public Variable varl;
+  public int maxSize;
+  protected RowSampler sampler;
+  protected int[] rows;
+  protected double[] yvalues;
+
+  public SliceBatch(Variable vary, DataRanges ranges, Variable varl,
+                    RowSampler sampler, int maxSize) {
+    this.vary = vary;
+    this.varl = varl;
+    this.sampler = sampler;
+    this.maxSize = maxSize;
+    this.ranges = new DataRanges(ranges);
+  }
+
+  public DataSlice2D getSlice(DataSource data, Variable varx) {
+    load(data);
+    // The slice compacts its rows, so it gets its own copy
+    return new DataSlice2D(data, varx, vary, ranges, varl, rows.clone(), yvalues);
+  }
+
+  synchronized protected void load(DataSource data) {
+    if (rows != null) return;
+    int[] rows = DataSlice2D.selectRows(data, ranges, sampler, maxSize);
+    yvalues = new double[rows.length];
+    vary.getValues(data, rows, rows.length, ranges.get(vary), yvalues);
+    this.rows = rows;
+  }
+}
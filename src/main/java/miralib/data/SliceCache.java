@@ -0,0 +1,113 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of data slices, keyed by their variables, the variable labelling 
+ * their values, the version of the ranges they were taken from, and their 
+ * maximum size. The least recently used slices are removed when the estimated
+ * memory of the cached slices goes over the limit. The cached slices are 
+ * shared between threads, so they must not be modified.
+ *
+ */
+
+public class SliceCache {
+  // Slices without sampling are stored with this size
+  final static public int FULL_SIZE = Integer.MAX_VALUE;
+
+  protected long maxBytes;
+  protected long bytes;
+  protected LinkedHashMap<Key, Entry> slices;
+
+  public SliceCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+    slices = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  }
+
+  synchronized public DataSlice1D get(Variable varx, Variable varl, long version, 
+                                      int maxSize) {
+    Entry entry = slices.get(new Key(varx, null, varl, version, maxSize));
+    return entry == null ? null : (DataSlice1D)entry.slice;
+  }
+
+  synchronized public DataSlice2D get(Variable varx, Variable vary, Variable varl, 
+                                      long version, int maxSize) {
+    Entry entry = slices.get(new Key(varx, vary, varl, version, maxSize));
+    return entry == null ? null : (DataSlice2D)entry.slice;
+  }
+
+  synchronized public void put(DataSlice1D slice, int maxSize) {
+    put(new Key(slice.varx, null, slice.varl, slice.ranges.getVersion(), maxSize), slice,
+        memory(slice.x.length, 2, slice.rows));
+  }
+
+  synchronized public void put(DataSlice2D slice, int maxSize) {
+    put(new Key(slice.varx, slice.vary, slice.varl, slice.ranges.getVersion(), maxSize), slice,
+        memory(slice.x.length, 3, slice.rows));
+  }
+
+  synchronized public void clear() {
+    slices.clear();
+    bytes = 0;
+  }
+
+  protected void put(Key key, Object slice, long size) {
+    if (maxBytes < size) return;
+    Entry prev = slices.put(key, new Entry(slice, size));
+    bytes += size;
+    if (prev != null) bytes -= prev.bytes;
+    Iterator<Entry> iter = slices.values().iterator();
+    while (maxBytes < bytes && iter.hasNext()) {
+      bytes -= iter.next().bytes;
+      iter.remove();
+    }
+  }
+
+  static protected long memory(int capacity, int arrays, int[] rows) {
+    long size = 8L * arrays * capacity;
+    if (rows != null) size += 4L * rows.length;
+    return size;
+  }
+
+  static protected class Key {
+    Variable varx, vary, varl;
+    long version;
+    int maxSize;
+
+    Key(Variable varx, Variable vary, Variable varl, long version, int maxSize) {
+      this.varx = varx;
+      this.vary = vary;
+      this.varl = varl;
+      this.version = version;
+      this.maxSize = maxSize;
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) return false;
+      Key that = (Key)obj;
+      return varx == that.varx && vary == that.vary && varl == that.varl &&
+             version == that.version && maxSize == that.maxSize;
+    }
+
+    public int hashCode() {
+      int hash = System.identityHashCode(varx);
+      hash = 31 * hash + System.identityHashCode(vary);
+      hash = 31 * hash + System.identityHashCode(varl);
+      hash = 31 * hash + (int)(version ^ (version >>> 32));
+      return 31 * hash + maxSize;
+    }
+  }
+
+  static protected class Entry {
+    Object slice;
+    long bytes;
+
+    Entry(Object slice, long bytes) {
+      this.slice = slice;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -5,7 +5,6 @@ package miralib.data;
 import java.util.ArrayList;
 
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * String variable, not used in calculations but can be used to generate labels.
@@ -69,17 +68,17 @@ public class StringVariable extends Variable {
     return 0;
   }  
   
-  public boolean missing(TableRow row) {
-    String value = row.getString(index);
+  public boolean missing(DataSource data, int row) {
+    String value = data.getStringColumn(index)[row];
     return value == null || value.equals(missingString);
   }
 
-  public double getValue(TableRow row, Range sel, boolean normalized) {
+  public double getValue(DataSource data, int row, Range sel, boolean normalized) {
     return 0;
   }
 
-  public String formatValue(TableRow row) {
-    String value = row.getString(index);
+  public String formatValue(DataSource data, int row) {
+    String value = data.getStringColumn(index)[row];
     if (value == null || value.equals(missingString)) return "missing";
     return value;
   }
@@ -104,7 +103,7 @@ public class StringVariable extends Variable {
     return "";
   }
 
-  protected double getWeightImpl(TableRow row) {
+  protected double getWeightImpl(DataSource data, int row) {
     return 0;
   }
 }
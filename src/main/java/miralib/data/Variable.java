@@ -4,13 +4,15 @@ package miralib.data;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import miralib.math.Numbers;
 import miralib.shannon.BinOptimizer;
 import miralib.utils.Log;
 import miralib.utils.Project;
 import processing.data.Table;
-import processing.data.TableRow;
 
 /**
  * Class holding all the meta-information needed to define a variable in the 
@@ -28,6 +30,13 @@ abstract public class Variable implements DataTree.Item {
   protected int index;
   protected Range range;
   protected float missing;
+  protected int missingCount;
+  protected volatile BitSet missingRows;
+  
+  // Resolutions of the last ranges, keyed by their bounds
+  final static protected int MAX_RESOLUTIONS = 16;
+  final static protected int RESOLUTION_CHUNK = 1 << 16;
+  protected LinkedHashMap<String, Double> resolutions;
   
   protected boolean weight;
   protected boolean subsample;
@@ -46,6 +55,7 @@ abstract public class Variable implements DataTree.Item {
     this.alias = name;
     this.index = index;
     this.missing = 0;
+    this.missingCount = -1;
     
     this.weight = false;
     this.subsample = false;
@@ -56,6 +66,13 @@ abstract public class Variable implements DataTree.Item {
     this.covariate = false;
     this.sortKey = false;
     this.open = true;    
+    
+    this.resolutions = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+        return MAX_RESOLUTIONS < size();
+      }
+    };
   }
   
   static public Variable create(int index, String name, int type) {
@@ -94,11 +111,51 @@ abstract public class Variable implements DataTree.Item {
   
   public void initRange(DataSource data) {
     range.reset();
+    int count = 0;
+    for (int r = 0; r < data.getRowCount(); r++) {
+      if (missing(data, r)) {
+        count++;
+        continue;
+      }
+      range.update(data, r);
+    }
+    missingCount = count;
+  }
+  
+  /**
+   * Number of rows where the variable is missing. It is counted along with 
+   * the range when the data is in memory, otherwise from the missing rows.
+   */
+  public int getMissingCount(DataSource data) {
+    if (missingCount < 0) missingCount = getMissingRows(data).cardinality();
+    return missingCount;
+  }
+  
+  /**
+   * Rows where the variable is missing, including the special values from the
+   * dictionary. The bitmap is built the first time it is needed, so opening
+   * the data doesn't read the columns, and it must not be modified.
+   */
+  public BitSet getMissingRows(DataSource data) {
+    BitSet rows = missingRows;
+    if (rows == null) {
+      synchronized (this) {
+        rows = missingRows;
+        if (rows == null) {
+          rows = findMissingRows(data);
+          missingRows = rows;
+        }
+      }
+    }
+    return rows;
+  }
+  
+  protected BitSet findMissingRows(DataSource data) {
+    BitSet rows = new BitSet();
     for (int r = 0; r < data.getRowCount(); r++) {
-      TableRow row = data.getRow(r);
-      if (missing(row)) continue;
-      range.update(row);
+      if (missing(data, r)) rows.set(r);
     }
+    return rows;
   }
   
   public int getScaling(DataSlice1D slice, Project prefs) {
@@ -110,10 +167,10 @@ abstract public class Variable implements DataTree.Item {
     double[] weightSum = new double[bcount];
     Arrays.fill(weightSum, 0);
     double totWeight = 0;
-    for (Value1D value: slice.values) {      
-      int bin = Numbers.constrain((int)(value.x / bsize), 0, bcount - 1);      
-      weightSum[bin] += value.w;
-      totWeight += value.w;
+    for (int i = 0; i < slice.size(); i++) {      
+      int bin = Numbers.constrain((int)(slice.x[i] / bsize), 0, bcount - 1);      
+      weightSum[bin] += slice.w[i];
+      totWeight += slice.w[i];
     }
     for (int bin = 0; bin < bcount; bin++) {
       if (weightSum[bin] / totWeight > 0.9) {
@@ -229,7 +286,66 @@ abstract public class Variable implements DataTree.Item {
     return sel == null ? range.getCount() : sel.getCount();
   }
   
-  abstract public boolean missing(TableRow row);  
+  abstract public boolean missing(DataSource data, int row);  
+  
+  /**
+   * Returns the minimum distance between two different normalized values of 
+   * the variable inside the range (the full range if sel is null), or -1 if 
+   * it is categorical. Distances under 1/MAX_HIST_BINS are returned as that 
+   * value, since no histogram uses finer bins. It is calculated only once for 
+   * each range.
+   */
+  public double getResolution(DataSource data, Range sel) {
+    if (categorical() || string()) return -1;
+    Range nrange = sel == null ? range : sel;
+    String key = nrange.getMin() + "," + nrange.getMax();
+    synchronized (resolutions) {
+      Double res = resolutions.get(key);
+      if (res != null) return res;
+    }
+    double res = calcResolution(data, nrange);
+    synchronized (resolutions) {
+      resolutions.put(key, res);
+    }
+    return res;
+  }
+  
+  /**
+   * Single pass over the column keeping the first value that falls in each 
+   * of the MAX_HIST_BINS bins. A second, different value in the same bin is 
+   * closer than the bin width to the first, so the scan stops there. 
+   * Otherwise the closest values are the first ones of adjacent bins.
+   */
+  protected double calcResolution(DataSource data, Range sel) {
+    int bins = BinOptimizer.MAX_HIST_BINS;
+    double minres = 1.0d / bins;
+    double[] first = new double[bins];
+    Arrays.fill(first, -1);
+    int count = data.getRowCount();
+    int chunk = Math.max(1, Math.min(count, RESOLUTION_CHUNK));
+    int[] rows = new int[chunk];
+    double[] values = new double[chunk];
+    for (int start = 0; start < count; start += chunk) {
+      int n = Math.min(chunk, count - start);
+      for (int i = 0; i < n; i++) rows[i] = start + i;
+      getValues(data, rows, n, sel, values);
+      for (int i = 0; i < n; i++) {
+        double value = values[i];
+        if (value < 0 || 1 < value) continue;
+        int bin = Math.min((int)(value * bins), bins - 1);
+        if (first[bin] < 0) first[bin] = value;
+        else if (first[bin] != value) return minres;
+      }
+    }
+    double res = Double.POSITIVE_INFINITY;
+    double prev = -1;
+    for (int bin = 0; bin < bins; bin++) {
+      if (first[bin] < 0) continue;
+      if (0 <= prev) res = Math.min(res, first[bin] - prev);
+      prev = first[bin];
+    }
+    return Math.max(res, minres);
+  }
   
   public boolean maxRange(Range sel) { return range.equals(sel); }
   
@@ -241,15 +357,27 @@ abstract public class Variable implements DataTree.Item {
 
   abstract public double getValue(String str, boolean normalized); 
   
-  public double getValue(TableRow row, DataRanges ranges) {
-    return getValue(row, ranges.get(this), true);
+  public double getValue(DataSource data, int row, DataRanges ranges) {
+    return getValue(data, row, ranges.get(this), true);
   }
   
-  public double getValue(TableRow row, Range sel) {
-    return getValue(row, sel, true);
+  public double getValue(DataSource data, int row, Range sel) {
+    return getValue(data, row, sel, true);
   }  
-  abstract public double getValue(TableRow row, Range sel, boolean normalized);
-  abstract public String formatValue(TableRow row);
+  abstract public double getValue(DataSource data, int row, Range sel, boolean normalized);
+  
+  /**
+   * Writes in values the normalized values of the variable for the first count 
+   * rows in the rows array, using -1 for the missing ones. 
+   */
+  public void getValues(DataSource data, int[] rows, int count, Range sel, 
+                        double[] values) {
+    for (int i = 0; i < count; i++) {
+      values[i] = getValue(data, rows[i], sel, true);
+    }
+  }
+  
+  abstract public String formatValue(DataSource data, int row);
   public String formatValue(double value) {
     return formatValue(value, true);  
   }
@@ -313,25 +441,25 @@ abstract public class Variable implements DataTree.Item {
     return weightVar != null;
   }
   
-  public double getWeight(TableRow row) {
+  public double getWeight(DataSource data, int row) {
     if (weightVar != null) {
-      return weightVar.getWeightImpl(row);
+      return weightVar.getWeightImpl(data, row);
     } else {
       return 1d;
     }
   }
   
-  public boolean insideSample(TableRow row) {
+  public boolean insideSample(DataSource data, int row) {
     if (weight) {
-      return 0 < getWeightImpl(row);
+      return 0 < getWeightImpl(data, row);
     } else if (weightVar != null) {
-      return !weightVar.missing(row) && 0 < weightVar.getWeightImpl(row);
+      return !weightVar.missing(data, row) && 0 < weightVar.getWeightImpl(data, row);
     } else {
       return true;
     }
   } 
   
-  abstract protected double getWeightImpl(TableRow row);
+  abstract protected double getWeightImpl(DataSource data, int row);
     
   static public int getType(String name) {
     if (name.equals("int") || name.equals("integer")) {
@@ -371,19 +499,19 @@ abstract public class Variable implements DataTree.Item {
     return "unknown";
   }  
   
-  static public double getWeight(TableRow row, Variable varx, Variable vary) {
+  static public double getWeight(DataSource data, int row, Variable varx, Variable vary) {
     if (varx.weight() || vary.weight()) {
       return 1d;
     } else if (!varx.weighted() || !vary.weighted()) {
-      return varx.weighted() ? varx.getWeight(row) : vary.getWeight(row);        
+      return varx.weighted() ? varx.getWeight(data, row) : vary.getWeight(data, row);        
     } else if (varx.subsample() && vary.subsample()) {
       return 0d; // subsamples are not notComparable
     } else if (!varx.subsample() && !vary.subsample()) {
-      return Math.min(varx.getWeight(row), vary.getWeight(row));
+      return Math.min(varx.getWeight(data, row), vary.getWeight(data, row));
     } else if (varx.subsample()) {
-      return varx.getWeight(row);
+      return varx.getWeight(data, row);
     } else if (vary.subsample()) {
-      return vary.getWeight(row);
+      return vary.getWeight(data, row);
     } else {
       return 1d; 
     }     
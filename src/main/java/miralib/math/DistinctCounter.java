@@ -0,0 +1,81 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.math;
+
+import java.util.HashSet;
+
+/**
+ * Counts the number of distinct values added to it. The count is exact until
+ * the number of values goes over the limit, after that the values are not
+ * stored anymore and the count is estimated with a HyperLogLog sketch, which
+ * uses a fixed amount of memory and has a relative error of about 1.6%.
+ *
+ */
+
+public class DistinctCounter {
+  final static protected int PRECISION = 12;
+  final static protected int REGISTERS = 1 << PRECISION;
+
+  protected int limit;
+  protected HashSet<Object> values;
+  protected byte[] registers;
+
+  public DistinctCounter(int limit) {
+    this.limit = limit;
+    values = new HashSet<Object>();
+  }
+
+  public void add(Object value) {
+    if (values != null) {
+      values.add(value);
+      if (limit < values.size()) {
+        registers = new byte[REGISTERS];
+        for (Object v: values) addToSketch(v);
+        values = null;
+      }
+    } else {
+      addToSketch(value);
+    }
+  }
+
+  public int count() {
+    return values != null ? values.size() : (int)Math.round(estimate());
+  }
+
+  public boolean isExact() {
+    return values != null;
+  }
+
+  protected void addToSketch(Object value) {
+    long hash = mix(value.hashCode());
+    int index = (int)(hash >>> (64 - PRECISION));
+    int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    if (registers[index] < rank) registers[index] = (byte)rank;
+  }
+
+  protected double estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (byte r: registers) {
+      sum += 1.0 / (1L << r);
+      if (r == 0) zeros++;
+    }
+    double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+    double estimate = alpha * REGISTERS * REGISTERS / sum;
+    if (estimate <= 2.5 * REGISTERS && 0 < zeros) {
+      // Linear counting is more accurate for small cardinalities
+      estimate = REGISTERS * Math.log((double)REGISTERS / zeros);
+    }
+    return estimate;
+  }
+
+  // Finalizer of MurmurHash3, spreads the bits of the hash code
+  static protected long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
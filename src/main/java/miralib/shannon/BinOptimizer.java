@@ -2,13 +2,9 @@
 
 package miralib.shannon;
 
-import java.util.ArrayList;
-
 import processing.core.PApplet;
 import miralib.data.DataSlice1D;
 import miralib.data.DataSlice2D;
-import miralib.data.Value1D;
-import miralib.data.Value2D;
 import miralib.math.Numbers;
 import miralib.utils.Log;
 
@@ -31,15 +27,17 @@ public class BinOptimizer {
   
   // These parameters dramatically affect the performance of the optimization algorithm
   static int MAX_SEARCH_SAMPLE_SIZE = 1000; // Won't evaluate more than this number of bins while searching for the optimal size
-  static int MAX_HIST_BINS = 100;           // No more than this number of bins per variable.
+  static public int MAX_HIST_BINS = 100;           // No more than this number of bins per variable.
   static int MAX_RES_SAMPLE_SIZE = 10;      // Number of values sampled to search for minimum difference
   static int MAX_HIST_SAMPLE_SIZE = 10000;  // number of values used to estimate the histograms during optimization
+  static int MAX_PREFIX_SIZE = 262144;      // Candidates that need more prefix sums than this are evaluated with hist2D
+  static int MIN_MERGE_SIZE = 16;           // Shorter runs of the sample are sorted by insertion
   static boolean PRINT_ERRORS = false;
   
   static public int calculate(DataSlice1D slice, int method) {
     if (slice.varx.categorical()) return (int)slice.countx;
       
-    int size = slice.values.size();    
+    int size = slice.size();    
     int hsize = size / 2;
         
     int minNBins, maxNBins;
@@ -49,7 +47,7 @@ public class BinOptimizer {
       minNBins = 2;
       long lcount = slice.countx;
       int icount = Integer.MAX_VALUE < lcount ? Integer.MAX_VALUE : (int)lcount;
-      float res = (float)res(slice.values);
+      float res = (float)res(slice.getResolution(), slice.x, size);
       maxNBins = Numbers.min((int)(1.0f/res) + 1, icount, hsize);
     }
     
@@ -74,18 +72,37 @@ public class BinOptimizer {
     
     int minn = (minNBins + maxNBins)/2;
     
+    // The sampled values are sorted, so the values in each bin are contiguous
+    // and its count is the difference of two prefix sums of the weights
+    int hmod = Math.max(1, size / MAX_HIST_SAMPLE_SIZE);
+    int[] order = sortSample(slice.x, size, hmod);
+    int count = order.length;
+    double[] sorted = new double[count];
+    double[] prefix = new double[count + 1];
+    for (int k = 0; k < count; k++) {
+      sorted[k] = slice.x[order[k]];
+      prefix[k + 1] = prefix[k] + slice.w[order[k]];
+    }
+    
     float minc = Float.MAX_VALUE;
     int mod = Math.max(1, numValues / MAX_SEARCH_SAMPLE_SIZE);
     for (int i = 0; i < numValues; i += mod) {
       int n = minNBins + i;
       float bsize = 1.0f / n;
-      double[] counts = hist1D(slice.values, n);
+      int[] starts = binStarts(sorted, n);
+      double sum = 0;
+      double sumsq = 0;
+      for (int b = 0; b < n; b++) {
+        double cb = prefix[starts[b + 1]] - prefix[starts[b]];
+        sum += cb;
+        sumsq += cb * cb;
+      }
       
       float c = 0;
       if (method == POISSON) {
-        c = (float)poissonCost(size, bsize, counts);  
+        c = (float)poissonCost(size, bsize, sum, sumsq, n);  
       } else if (method == CROSSVAL) {
-        c = (float)crossvalCost(size, bsize, counts);        
+        c = (float)crossvalCost(size, bsize, sumsq);        
       } 
       
       if (c < minc) {
@@ -101,7 +118,7 @@ public class BinOptimizer {
       return new int[] {(int)slice.countx, (int)slice.county};
     }
     
-    int size = slice.values.size();
+    int size = slice.size();
     int sqsize = (int)Math.sqrt(size / 2);
     
     int minNBins0, maxNBins0;
@@ -113,7 +130,7 @@ public class BinOptimizer {
       minNBins0 = 2;
       long lcount = slice.countx;
       int icount = Integer.MAX_VALUE < lcount ? Integer.MAX_VALUE : (int)lcount;
-      float res = (float)resx(slice.values);   
+      float res = (float)res(slice.getResolutionX(), slice.x, size);
       maxNBins0 = Numbers.min((int)(1.0f/res) + 1, icount, sqsize);
     }
     
@@ -126,7 +143,7 @@ public class BinOptimizer {
       minNBins1 = 2;
       long lcount = slice.county;
       int icount = Integer.MAX_VALUE < lcount ? Integer.MAX_VALUE : (int)lcount;
-      float res = (float)resy(slice.values);            
+      float res = (float)res(slice.getResolutionY(), slice.y, size);
       maxNBins1 = Numbers.min((int)(1.0f/res) + 1, icount, sqsize);
     }
     
@@ -161,6 +178,38 @@ public class BinOptimizer {
       
     int minn0 = (minNBins0 + maxNBins0)/2;
     int minn1 = (minNBins1 + maxNBins1)/2;
+    
+    // The sampled values are sorted along y, so for any binning in y the 
+    // values in each y bin are contiguous. The counts of a candidate binning 
+    // are then differences between the prefix sums of the weights in each x 
+    // bin, taken at the starts of the y bins.
+    int hmod = Math.max(1, size / MAX_HIST_SAMPLE_SIZE);
+    int[] order = sortSample(slice.y, size, hmod);
+    int count = order.length;
+    double[] sorted = new double[count];
+    for (int k = 0; k < count; k++) sorted[k] = slice.y[order[k]];
+    
+    // Starts of the y bins of all the candidates, only the prefix sums at 
+    // these positions are stored
+    int[][] starts1 = new int[blen1][];
+    boolean[] stored = new boolean[count + 1];
+    for (int j = 0; j < blen1; j++) {
+      starts1[j] = binStarts(sorted, minNBins1 + j);
+      for (int pos: starts1[j]) stored[pos] = true;
+    }
+    int[] index = new int[count + 1];
+    int npos = 0;
+    for (int k = 0; k <= count; k++) {
+      if (stored[k]) index[k] = npos++;
+    }
+    for (int[] starts: starts1) {
+      for (int b = 0; b < starts.length; b++) starts[b] = index[starts[b]];
+    }
+    // The rows of the prefix sums are only allocated up to the largest x 
+    // binning evaluated with them
+    double[][] prefix = new double[maxNBins0][];
+    int prefixn0 = 0;
+    
     float minc = Float.MAX_VALUE;
     int mod = Math.max(1, numValues / MAX_SEARCH_SAMPLE_SIZE);
     for (int i = 0; i < numValues; i += mod) {
@@ -168,14 +217,44 @@ public class BinOptimizer {
       int n1 = i % blen1 + minNBins1;
       float bsize0 = 1.0f / n0; 
       float bsize1 = 1.0f / n1;
-      float barea = bsize0 * bsize1;          
-      double[][] counts = hist2D(slice.values, n0, n1);
+      float barea = bsize0 * bsize1;
+      double sum = 0;
+      double sumsq = 0;
+      if ((long)n0 * npos <= MAX_PREFIX_SIZE) {
+        if (n0 != prefixn0) {
+          // The candidates are visited in increasing n0, so the prefix sums 
+          // are calculated once for each x binning
+          for (int bx = 0; bx < n0; bx++) {
+            if (prefix[bx] == null) prefix[bx] = new double[npos];
+          }
+          prefixSums(slice.x, slice.w, order, stored, n0, prefix);
+          prefixn0 = n0;
+        }
+        int[] starts = starts1[n1 - minNBins1];
+        for (int bx = 0; bx < n0; bx++) {
+          double[] prefixx = prefix[bx];
+          for (int by = 0; by < n1; by++) {
+            double cb = prefixx[starts[by + 1]] - prefixx[starts[by]];
+            sum += cb;
+            sumsq += cb * cb;
+          }
+        }
+      } else {
+        double[][] counts = hist2D(slice.x, slice.y, slice.w, size, n0, n1);
+        for (int bx = 0; bx < n0; bx++) {
+          for (int by = 0; by < n1; by++) {
+            double cb = counts[bx][by];
+            sum += cb;
+            sumsq += cb * cb;
+          }
+        }
+      }
       
       float c = 0;
       if (method == POISSON) {
-        c = (float)poissonCost(size, barea, counts);  
+        c = (float)poissonCost(size, barea, sum, sumsq, n0 * n1);  
       } else if (method == CROSSVAL) {
-        c = (float)crossvalCost(size, barea, counts);        
+        c = (float)crossvalCost(size, barea, sumsq);        
       }
       
       if (c < minc) {
@@ -187,169 +266,162 @@ public class BinOptimizer {
     return new int[] {minn0, minn1};
   } 
 
-  static protected double poissonCost(int n, double h, double[] counts) {
-    double[] res = countsMeanDev(counts);
-    double k = res[0];
-    double v = res[1];
+  // The cost functions take the sum and the sum of squares of the counts in 
+  // all the bins
+  static protected double poissonCost(int n, double h, double sum, double sumsq, 
+                                      int bins) {
+    // VERY IMPORTANT: Do NOT use a variance that uses N-1 to divide the sum of 
+    // squared errors. Use the biased sample variance in the method.
+    double k = sum / bins;
+    double meansq = sumsq / bins;
+    double v = Math.max(0, meansq - k * k);
     double cost = (2 * k - v) / (n * n * h * h);
     return cost;
   }  
   
-  static protected double poissonCost(int n, double h, double[][] counts) {
-    double[] res = countsMeanDev(counts);
-    double k = res[0];
-    double v = res[1];
-    double cost = (2 * k - v) / (n * n * h * h);
-    return cost;
-  }
-  
-  static protected double crossvalCost(int n, double h, double[] counts) {
-    double sum = countsSqSum(counts);
-    double cost = 2 / ((n - 1) * h) - ((n + 1) / ((n * n) * (n - 1) * h)) * sum;
+  static protected double crossvalCost(int n, double h, double sumsq) {
+    double cost = 2 / ((n - 1) * h) - ((n + 1) / ((n * n) * (n - 1) * h)) * sumsq;
     return cost;  
   }  
-  
-  static protected double crossvalCost(int n, double h, double[][] counts) {
-    double sum = countsSqSum(counts);
-    double cost = 2 / ((n - 1) * h) - ((n + 1) / ((n * n) * (n - 1) * h)) * sum;
-    return cost;  
-  }
 
-  static public double[] hist1D(ArrayList<Value1D> values, int bnum) {    
+  static public double[] hist1D(double[] x, double[] w, int size, int bnum) {    
     double[] counts = new double[bnum];
     float bsize = 1.0f / bnum;
-    int mod = Math.max(1, values.size() / MAX_HIST_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value1D value = values.get(i);
-      int bin = Numbers.constrain((int)(value.x / bsize), 0, bnum - 1);
-      counts[bin] += value.w;
+    int mod = Math.max(1, size / MAX_HIST_SAMPLE_SIZE);
+    for (int i = 0; i < size; i += mod) {
+      int bin = Numbers.constrain((int)(x[i] / bsize), 0, bnum - 1);
+      counts[bin] += w[i];
     }
     return counts; 
   }
 
-  static public double[][] hist2D(ArrayList<Value2D> values,                                
+  static public double[][] hist2D(double[] x, double[] y, double[] w, int size,
                                   int bnumx, int bnumy) {
     double[][] counts = new double[bnumx][bnumy];
     float bsizex = 1.0f / bnumx; 
     float bsizey = 1.0f / bnumy; 
-    int mod = Math.max(1, values.size() / MAX_HIST_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value2D value = values.get(i);
-      int binx = Numbers.constrain((int)(value.x / bsizex), 0, bnumx - 1);
-      int biny = Numbers.constrain((int)(value.y / bsizey), 0, bnumy - 1);    
-      counts[binx][biny] += value.w;
+    int mod = Math.max(1, size / MAX_HIST_SAMPLE_SIZE);
+    for (int i = 0; i < size; i += mod) {
+      int binx = Numbers.constrain((int)(x[i] / bsizex), 0, bnumx - 1);
+      int biny = Numbers.constrain((int)(y[i] / bsizey), 0, bnumy - 1);    
+      counts[binx][biny] += w[i];
     }
     return counts; 
   }
-
-  static protected double[] countsMeanDev(double[] counts) {
-    int n = counts.length;
-    double sum = 0;  
-    double sumsq = 0;
-    for (int i = 0; i < n; i++) {
-      double count = counts[i];
-      sum += count;
-      sumsq += count * count; 
-    }
-    // VERY IMPORTANT: Do NOT use a variance that uses N-1 to divide the sum of 
-    // squared errors. Use the biased sample variance in the method.
-    double mean = sum / n;
-    double meansq = sumsq / n;
-    double dev = Math.max(0, meansq - mean * mean);    
-    return new double[] {mean, dev};    
-  }    
   
-  static protected double countsSqSum(double[] counts) {
-    int n = counts.length;
-    double sumsq = 0;
-    for (int i = 0; i < n; i++) {
-      double count = counts[i];
-      sumsq += count * count; 
-    }
-    return sumsq;
+  /**
+   * Returns the indices of the values used to estimate the histograms (one 
+   * every mod values), sorted by value.
+   */
+  static protected int[] sortSample(double[] values, int size, int mod) {
+    int count = (size + mod - 1) / mod;
+    int[] order = new int[count];
+    for (int k = 0; k < count; k++) order[k] = k * mod;
+    sortIndices(values, order, new int[count], 0, count);
+    return order;
   }
   
-  static protected double res(ArrayList<Value1D> values) {
-    double res = Double.POSITIVE_INFINITY;
-    int mod = Math.max(1, values.size() / MAX_RES_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value1D vali = values.get(i);
-      for (int j = 0; j < values.size(); j++) {
-        Value1D valj = values.get(j);
-        double diff = Math.abs(valj.x - vali.x);
-        if (0 < diff) {
-          res = Math.min(res, diff);
-        }        
+  /**
+   * Merge sort of the indices in [lo, hi) by their values, using tmp as the 
+   * merge buffer.
+   */
+  static protected void sortIndices(double[] values, int[] idx, int[] tmp, 
+                                    int lo, int hi) {
+    if (hi - lo < MIN_MERGE_SIZE) {
+      for (int i = lo + 1; i < hi; i++) {
+        int k = idx[i];
+        double v = values[k];
+        int j = i - 1;
+        while (lo <= j && Double.compare(v, values[idx[j]]) < 0) {
+          idx[j + 1] = idx[j];
+          j--;
+        }
+        idx[j + 1] = k;
       }
-    }    
-    return Math.max(res, 1.0d / MAX_HIST_BINS);
-  } 
-    
-  static protected double[] countsMeanDev(double[][] counts) {
-    int ni = counts.length;
-    int nj = counts[0].length;
-    int n = ni * nj;
-    double sum = 0;
-    double sumsq = 0;
-    for (int i = 0; i < ni; i++) {
-      for (int j = 0; j < nj; j++) {
-        double count = counts[i][j];
-        sum += count;
-        sumsq += count * count; 
+      return;
+    }
+    int mid = (lo + hi) >>> 1;
+    sortIndices(values, idx, tmp, lo, mid);
+    sortIndices(values, idx, tmp, mid, hi);
+    if (Double.compare(values[idx[mid - 1]], values[idx[mid]]) <= 0) return;
+    System.arraycopy(idx, lo, tmp, lo, hi - lo);
+    int i = lo, j = mid;
+    for (int k = lo; k < hi; k++) {
+      if (i < mid && (hi <= j || 
+                      Double.compare(values[tmp[i]], values[tmp[j]]) <= 0)) {
+        idx[k] = tmp[i++];
+      } else {
+        idx[k] = tmp[j++];
       }
     }
-    // VERY IMPORTANT: Do NOT use a variance that uses N-1 to divide the sum of 
-    // squared errors. Use the biased sample variance in the method.    
-    double mean = sum / n;
-    double meansq = sumsq / n;
-    double dev = Math.max(0, meansq - mean * mean);    
-    return new double[] {mean, dev};
   }
   
-  static protected double countsSqSum(double[][] counts) {
-    int ni = counts.length;
-    int nj = counts[0].length;
-    double sumsq = 0;
-    for (int i = 0; i < ni; i++) {
-      for (int j = 0; j < nj; j++) {
-        double count = counts[i][j];
-        sumsq += count * count; 
+  /**
+   * Returns the positions in the sorted values where each one of the bnum 
+   * bins starts, followed by the number of values. The bin of a value is 
+   * calculated in the same way as in the histograms, and never decreases as 
+   * the value increases.
+   */
+  static protected int[] binStarts(double[] sorted, int bnum) {
+    float bsize = 1.0f / bnum;
+    int[] starts = new int[bnum + 1];
+    for (int b = 1; b < bnum; b++) {
+      int lo = starts[b - 1];
+      int hi = sorted.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (Numbers.constrain((int)(sorted[mid] / bsize), 0, bnum - 1) < b) lo = mid + 1;
+        else hi = mid;
       }
+      starts[b] = lo;
     }
-    return sumsq;
-  } 
+    starts[bnum] = sorted.length;
+    return starts;
+  }
   
-  static protected double resx(ArrayList<Value2D> values) {
-    double res = Double.POSITIVE_INFINITY;
-    int mod = Math.max(1, values.size() / MAX_RES_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value2D vali = values.get(i);
-      for (int j = 0; j < values.size(); j++) {
-        Value2D valj = values.get(j);
-        double diff = Math.abs(valj.x - vali.x);
-        if (0 < diff) {
-          res = Math.min(res, diff);
-        }        
+  /**
+   * Calculates, for each one of the bnum bins in x, the prefix sums of the 
+   * weights of the values in that bin, following the given order and storing
+   * only the ones at the selected positions.
+   */
+  static protected void prefixSums(double[] x, double[] w, int[] order, 
+                                   boolean[] stored, int bnum, double[][] prefix) {
+    float bsize = 1.0f / bnum;
+    double[] running = new double[bnum];
+    int pos = 0;
+    for (int k = 0; k <= order.length; k++) {
+      if (stored[k]) {
+        for (int b = 0; b < bnum; b++) prefix[b][pos] = running[b];
+        pos++;
+      }
+      if (k < order.length) {
+        int i = order[k];
+        running[Numbers.constrain((int)(x[i] / bsize), 0, bnum - 1)] += w[i];
       }
     }
-    return Math.max(res, 1.0d / MAX_HIST_BINS);
-  }  
+  }
 
-  static protected double resy(ArrayList<Value2D> values) {
+  // The resolution of the variable is used when known, otherwise it is 
+  // estimated from the values
+  static protected double res(double known, double[] values, int size) {
+    if (0 <= known) return Math.max(known, 1.0d / MAX_HIST_BINS);
+    return res(values, size);
+  }
+  
+  static protected double res(double[] values, int size) {
     double res = Double.POSITIVE_INFINITY;
-    int mod = Math.max(1, values.size() / MAX_RES_SAMPLE_SIZE);
-    for (int i = 0; i < values.size(); i += mod) {
-      Value2D vali = values.get(i);
-      for (int j = 0; j < values.size(); j++) {
-        Value2D valj = values.get(j);
-        double diff = Math.abs(valj.y - vali.y);
+    int mod = Math.max(1, size / MAX_RES_SAMPLE_SIZE);
+    for (int i = 0; i < size; i += mod) {
+      double vali = values[i];
+      for (int j = 0; j < size; j++) {
+        double diff = Math.abs(values[j] - vali);
         if (0 < diff) {
           res = Math.min(res, diff);
         }        
       }
     }    
     return Math.max(res, 1.0d / MAX_HIST_BINS);
-  }
+  } 
     
   static public String algorithmToString(int algo) {
     if (algo == RICE) {
@@ -8,17 +8,16 @@ public class Distance extends Statistics {
     int[] res = BinOptimizer.calculate(slice, prefs.binAlgorithm);
     int binx = res[0];
     int biny = res[1];
-    float ixy = MutualInformation.calculate(slice, binx, biny);
-    return calculate(slice, ixy, binx, biny);
+    JointCounts counts = new JointCounts(slice, binx, biny);
+    return calculate(counts, counts.mutualInformation());
   }
 
-  // This method requires the binning already calculated on the slice itself
-  static public float calculate(DataSlice2D slice, float ixy) {
-    return calculate(slice, ixy, slice.binx, slice.biny);
+  static public float calculate(DataSlice2D slice, float ixy, int binx, int biny) {
+    return calculate(new JointCounts(slice, binx, biny), ixy);
   }
 
-  static public float calculate(DataSlice2D slice, float ixy, int binx, int biny) {
-    float hxy = JointEntropy.calculate(slice, binx, biny);
+  static public float calculate(JointCounts counts, float ixy) {
+    float hxy = counts.jointEntropy();
     float dxy = Math.max(0, hxy - ixy);
     return dxy;
   }
@@ -3,7 +3,6 @@ package miralib.shannon;
 import java.util.ArrayList;
 
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
 import miralib.math.Numbers;
 import miralib.utils.Project;
 
@@ -25,10 +24,10 @@ public class Histogram {
     float sbiny = 1.0f / nbiny;
     double[][] counts = new double[nbinx][nbiny];
     
-    for (Value2D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-      counts[bx][by] += value.w;
+    for (int i = 0; i < slice.size(); i++) {
+      int bx = Numbers.constrain((int)(slice.x[i] / sbinx), 0, nbinx - 1);  
+      int by = Numbers.constrain((int)(slice.y[i] / sbiny), 0, nbiny - 1);  
+      counts[bx][by] += slice.w[i];
     }
     
     ArrayList<ArrayList<Double>> hist = new ArrayList<ArrayList<Double>>();
@@ -50,10 +49,10 @@ public class Histogram {
 	    float sbiny = 1.0f / nbiny;
 	    int[][] counts = new int[nbinx][nbiny];
 	    
-	    for (Value2D value: slice.values) {
-	      int bx = Numbers.constrain((int)(value.x / sbinx), 0, nbinx - 1);  
-	      int by = Numbers.constrain((int)(value.y / sbiny), 0, nbiny - 1);  
-	      counts[bx][by] += value.w;
+	    for (int i = 0; i < slice.size(); i++) {
+	      int bx = Numbers.constrain((int)(slice.x[i] / sbinx), 0, nbinx - 1);  
+	      int by = Numbers.constrain((int)(slice.y[i] / sbiny), 0, nbiny - 1);  
+	      counts[bx][by] += slice.w[i];
 	    }
 	    return counts;
 	  }
@@ -0,0 +1,192 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.shannon;
+
+import java.util.Arrays;
+
+import miralib.data.DataSlice2D;
+import miralib.math.Numbers;
+
+/**
+ * Weighted counts of a 2D slice in a given binning, calculated in a single
+ * pass over the slice. The information measures of the pair (mutual
+ * information, joint and marginal entropies) are all derived from the same
+ * counts, so the slice doesn't need to be binned again for each one of them.
+ *
+ */
+
+public class JointCounts {
+  public int binx, biny;
+  public double[][] counts;
+  public double[] countsx, countsy;
+  public double total;
+
+  // Only one bin along X or Y is occupied
+  protected boolean singlebx, singleby;
+  protected int lastbx, lastby;
+
+  public JointCounts(DataSlice2D slice, int binx, int biny) {
+    this(binx, biny);
+    if (empty()) return;
+    float sbinx = 1.0f / binx;
+    float sbiny = 1.0f / biny;
+    double[] x = slice.x;
+    double[] y = slice.y;
+    double[] w = slice.w;
+    for (int i = 0; i < slice.size(); i++) {
+      int bx = Numbers.constrain((int)(x[i] / sbinx), 0, binx - 1);
+      int by = Numbers.constrain((int)(y[i] / sbiny), 0, biny - 1);
+      add(bx, by, w[i]);
+    }
+  }
+
+  /**
+   * Creates empty counts, which are filled with add() and can be reused after
+   * calling clear().
+   */
+  public JointCounts(int binx, int biny) {
+    this.binx = binx;
+    this.biny = biny;
+    if (binx < 1 || biny < 1) return;
+    counts = new double[binx][biny];
+    countsx = new double[binx];
+    countsy = new double[biny];
+    clear();
+  }
+
+  public void clear() {
+    for (int bx = 0; bx < binx; bx++) Arrays.fill(counts[bx], 0);
+    Arrays.fill(countsx, 0);
+    Arrays.fill(countsy, 0);
+    total = 0;
+    singlebx = true;
+    singleby = true;
+    lastbx = -1;
+    lastby = -1;
+  }
+
+  public void add(int bx, int by, double weight) {
+    counts[bx][by] += weight;
+    countsx[bx] += weight;
+    countsy[by] += weight;
+
+    if (lastbx != -1 && lastbx != bx) singlebx = false;
+    if (lastby != -1 && lastby != by) singleby = false;
+    lastbx = bx;
+    lastby = by;
+    total += weight;
+  }
+
+  /**
+   * Returns the bins of the first size normalized values, when there are nbin 
+   * bins.
+   */
+  static public int[] bins(double[] values, int size, int nbin) {
+    float sbin = 1.0f / nbin;
+    int[] bins = new int[size];
+    for (int i = 0; i < size; i++) {
+      bins[i] = Numbers.constrain((int)(values[i] / sbin), 0, nbin - 1);
+    }
+    return bins;
+  }
+
+  public boolean empty() {
+    return counts == null;
+  }
+
+  public int nonzero() {
+    int nonzero = 0;
+    for (int bx = 0; bx < binx; bx++) {
+      for (int by = 0; by < biny; by++) {
+        if (0 < counts[bx][by]) nonzero++;
+      }
+    }
+    return nonzero;
+  }
+
+  public float mutualInformation() {
+    if (binx < 2 || biny < 2) return 0;
+
+    // Pairs with a only one occupied bin along X or Y are considered
+    // independent, because the statistics are insufficient
+    if (singlebx || singleby) {
+      return 0;
+    }
+
+    double information = 0;
+    int nonzero = 0;
+    for (int bx = 0; bx < binx; bx++) {
+      for (int by = 0; by < biny; by++) {
+        double pxy = counts[bx][by] / total;
+        double px = countsx[bx] / total;
+        double py = countsy[by] / total;
+
+        double ibin = 0;
+        if (0 < pxy && 0 < px && 0 < py) {
+          nonzero++;
+          ibin = pxy * (Math.log(pxy / (px * py)));
+        }
+
+        information += ibin;
+      }
+    }
+
+    if (information < 0 || Double.isNaN(information)) return 0;
+
+    // Finite size correction: "The Mutual Information: Detecting and evaluating dependencies between variables", pp S234.
+    // Should use nonzeroBins instead of binCountX * binCountY?
+    double correction = (nonzero - binx - biny + 1) / (2 * total);
+    return (float)Math.max(0, information - correction);
+  }
+
+  public float jointEntropy() {
+    if (binx < 2 || biny < 2) return 0;
+
+    double entropy = 0;
+    int nonzero = 0;
+    for (int bx = 0; bx < binx; bx++) {
+      for (int by = 0; by < biny; by++) {
+        double pxy = counts[bx][by] / total;
+
+        double hbin = 0;
+        if (0 < pxy) {
+          nonzero++;
+          hbin = -pxy * Math.log(pxy);
+        }
+
+        entropy += hbin;
+      }
+    }
+
+    if (entropy < 0 || Double.isNaN(entropy)) return 0;
+
+    // Finite size correction
+    double correction = (nonzero - 1) / (2 * total);
+    return (float)(entropy + correction);
+  }
+
+  public float marginalEntropyX() {
+    return marginalEntropy(countsx, binx, total);
+  }
+
+  public float marginalEntropyY() {
+    return marginalEntropy(countsy, biny, total);
+  }
+
+  static protected float marginalEntropy(double[] counts, int nbin, double total) {
+    if (nbin < 2) return 0;
+
+    double entropy = 0;
+    for (int b = 0; b < nbin; b++) {
+      double p = counts[b] / total;
+      double hbin = 0 < p ? -p * Math.log(p) : 0;
+      entropy += hbin;
+    }
+
+    if (entropy < 0 || Double.isNaN(entropy)) return 0;
+
+    // Finite size correction
+    double correction = (nbin - 1) / (2 * total);
+    return (float)(entropy + correction);
+  }
+}
@@ -3,7 +3,6 @@
 package miralib.shannon;
 
 import miralib.data.DataSlice1D;
-import miralib.data.Value1D;
 import miralib.math.Numbers;
 import miralib.utils.Project;
 
@@ -25,10 +24,10 @@ public class MarginalEntropy {
     double[] counts = new double[nbin];
     
     double total = 0;
-    for (Value1D value: slice.values) {
-      int bx = Numbers.constrain((int)(value.x / sbin), 0, nbin - 1);    
-      counts[bx] += value.w;
-      total += value.w;
+    for (int i = 0; i < slice.size(); i++) {
+      int bx = Numbers.constrain((int)(slice.x[i] / sbin), 0, nbin - 1);    
+      counts[bx] += slice.w[i];
+      total += slice.w[i];
     }
           
     double entropy = 0;
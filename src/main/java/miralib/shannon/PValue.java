@@ -4,9 +4,6 @@ import miralib.data.DataSlice2D;
 import miralib.data.Variable;
 import miralib.utils.Project;
 
-import org.apache.commons.math3.distribution.GammaDistribution;
-import org.apache.commons.math3.distribution.NormalDistribution;
-
 public class PValue extends Statistics {
   public static double MAX_SCORE = 9;
   public static double MIN_VALUE = 10E-9;
@@ -28,11 +25,11 @@ public class PValue extends Statistics {
     return new float[] {ixy, pval};
   }
 
-  // This method requires the binning already calculated on the slice itself
   static public float calculate(DataSlice2D slice, float ixy, Project prefs) {
     if (slice.self()) return 0;
     if (slice.notComparable()) return 1;
-    return pvalue(slice, ixy, slice.binx, slice.biny, prefs);
+    int[] res = BinOptimizer.calculate(slice, prefs.binAlgorithm);
+    return pvalue(slice, ixy, res[0], res[1], prefs);
   }
 
   static public float getScore(DataSlice2D slice, float pval) {
@@ -55,11 +52,12 @@ public class PValue extends Statistics {
     } else if (prefs.depTest == DependencyTest.NO_TEST) {
       pval = 0;
     } else if (prefs.depTest == DependencyTest.SURROGATE_GAUSS) {
-      pval = (float) surrogateGaussP(slice, ixy, prefs.binAlgorithm, prefs.surrCount);
+      pval = (float) surrogateGaussP(slice, ixy, prefs.binAlgorithm, prefs.surrCount,
+                                       surrogateSeed(prefs));
     } else if (prefs.depTest == DependencyTest.SURROGATE_GENERAL) {
       pval = (float) surrogateGeneralP(slice, ixy, prefs.binAlgorithm);
     } else if (prefs.depTest == DependencyTest.GAMMA_TEST) {
-      pval = (float) gammaTestP(ixy, binx, biny, slice.values.size());
+      pval = (float) gammaTestP(ixy, binx, biny, slice.size());
     }
     if (pval < Float.MIN_VALUE) {
       pval = Float.MIN_VALUE;
@@ -68,11 +66,10 @@ public class PValue extends Statistics {
   }
   
   static protected double surrogateGaussP(DataSlice2D slice, float ixy,
-                                          int binAlgo, int scount) {
-    float zs = getSurrogateGaussDistribution(slice, ixy, binAlgo, scount);
+                                          int binAlgo, int scount, long seed) {
+    float zs = getSurrogateGaussDistribution(slice, ixy, binAlgo, scount, seed);
     try { 
       // Not so sure about getting the P-value from the statistic zs in this way...
-      NormalDistribution normDist = new NormalDistribution();
       return 1 - normDist.cumulativeProbability(zs);
     } catch (Exception ex) {
       return 1;
@@ -89,8 +86,7 @@ public class PValue extends Statistics {
     double shapePar = (binx - 1) * (biny - 1) / 2d;
     double scalePar = 1d / count;
     try {
-      GammaDistribution gammaDist = new GammaDistribution(shapePar, scalePar);
-      return 1 - gammaDist.cumulativeProbability(ixy);
+      return 1 - getGammaDistribution(shapePar).cumulativeProbability(ixy / scalePar);
     } catch (Exception ex) {
       return 1;
     }    
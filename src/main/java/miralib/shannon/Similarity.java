@@ -20,28 +20,31 @@ public class Similarity extends Statistics {
     int binx = res[0];
     int biny = res[1];
     
-    float ixy = MutualInformation.calculate(slice, binx, biny);
+    // The slice is binned only once for both the mutual information and the
+    // joint entropy
+    JointCounts counts = new JointCounts(slice, binx, biny);
+    float ixy = counts.mutualInformation();
     boolean indep = independenceTest(slice, ixy, binx, biny, pvalue, prefs);
     if (indep) return 0;
-    else return calculate(slice, ixy, binx, biny);
+    else return calculate(counts, ixy);
   }
 
-  // This method requires the binning already calculated on the slice itself
   static public float calculate(DataSlice2D slice, float ixy, float pvalue, Project prefs) {
     if (slice.self()) return 1;
     if (slice.notComparable()) return 0;
 
-    boolean indep = independenceTest(slice, ixy, slice.binx, slice.biny, pvalue, prefs);
+    int[] res = BinOptimizer.calculate(slice, prefs.binAlgorithm);
+    boolean indep = independenceTest(slice, ixy, res[0], res[1], pvalue, prefs);
     if (indep) return 0;
-    else return calculate(slice, ixy);
+    else return calculate(slice, ixy, res[0], res[1]);
   }
 
-  static public float calculate(DataSlice2D slice, float ixy) {
-    return calculate(slice, ixy, slice.binx, slice.biny);
+  static public float calculate(DataSlice2D slice, float ixy, int binx, int biny) {
+    return calculate(new JointCounts(slice, binx, biny), ixy);
   }
 
-  static public float calculate(DataSlice2D slice, float ixy, int binx, int biny) {
-    float hxy = JointEntropy.calculate(slice, binx, biny);
+  static public float calculate(JointCounts counts, float ixy) {
+    float hxy = counts.jointEntropy();
     float w;
     if (Numbers.equal(0.0, hxy)) {
       w = 0;
@@ -63,9 +66,10 @@ public class Similarity extends Statistics {
     int binx = res[0];
     int biny = res[1];
 
-    float ixy = MutualInformation.calculate(slice, binx, biny);
+    JointCounts counts = new JointCounts(slice, binx, biny);
+    float ixy = counts.mutualInformation();
     boolean indep = independenceTest(slice, ixy, binx, biny, prefs, depTest, numTail, binAlgo, pvalue);
     if (indep) return 0;
-    else return calculate(slice, ixy, binx, biny);
+    else return calculate(counts, ixy);
   }
 }
@@ -1,7 +1,6 @@
 package miralib.shannon;
 
 import miralib.data.DataSlice2D;
-import miralib.data.Value2D;
 import miralib.math.Numbers;
 import miralib.utils.Project;
 import org.apache.commons.math3.distribution.GammaDistribution;
@@ -14,8 +13,13 @@ import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.math.RoundingMode; //included RoundingMode
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.Map;
 
 //DISCLAIMER: MODIFICATIONS MADE BY ELIZABETH CHIN 06/26/2015
 //Comments are placed after each modification
@@ -56,7 +60,18 @@ import java.util.List;
 
 public class Statistics {
 	protected static NormalDistribution normDist = new NormalDistribution();
-	protected static HashMap<Double, Double> criticalValues = new HashMap<Double, Double>();
+
+	// Distributions and critical values are shared by the scoring threads, and
+	// only the most recently used ones are kept
+	final static protected int MAX_CACHED_VALUES = 256;
+	protected static Map<Double, Double> criticalValues = boundedCache(MAX_CACHED_VALUES);
+	protected static Map<Double, GammaDistribution> gammaDists = boundedCache(MAX_CACHED_VALUES);
+	protected static Map<Double, Map<Float, Double>> gammaCriticalValues = boundedCache(MAX_CACHED_VALUES);
+
+	// Sequential surrogate tests stop as soon as their decision is settled, 
+	// starting with this many surrogates
+	final static protected int MIN_SEQUENTIAL_SURROGATES = 16;
+	final static protected double SEQUENTIAL_CONFIDENCE = 3;
 
 	private static final int maxSize = 100; //increased max size since symmetric matrix
 	private static ArrayList<BigInteger> f = new ArrayList<BigInteger>();
@@ -74,11 +89,13 @@ public class Statistics {
     } else if (prefs.depTest == DependencyTest.NO_TEST || Numbers.equal(pvalue, 1)) {
       indep = ixy <= prefs.threshold;
     } else if (depTest == DependencyTest.SURROGATE_GAUSS) {
-      indep = surrogateGaussTest(slice, ixy, binAlgo, prefs.surrCount, cval);
+      indep = surrogateGaussTest(slice, ixy, binAlgo, prefs.surrCount, cval, prefs.surrSequential,
+                                 surrogateSeed(prefs));
     } else if (depTest == DependencyTest.SURROGATE_GENERAL) {
-      indep = surrogateGeneralTest(slice, ixy, binAlgo, pvalue);
+      indep = surrogateGeneralTest(slice, ixy, binAlgo, pvalue, prefs.surrSequential,
+                                   surrogateSeed(prefs));
     } else if (depTest == DependencyTest.GAMMA_TEST) {
-      indep = gammaTest(ixy, binx, biny, slice.values.size(), pvalue);
+      indep = gammaTest(ixy, binx, biny, slice.size(), pvalue);
     } else if (depTest == DependencyTest.SPEARMAN_TEST) {
       indep = spearmanTest(slice, pvalue, numTail);
     } else if (depTest == DependencyTest.PEARSON_TEST) {
@@ -99,11 +116,13 @@ public class Statistics {
     } else if (prefs.depTest == DependencyTest.NO_TEST || Numbers.equal(pvalue, 1)) {
       indep = ixy <= prefs.threshold;
     } else if (prefs.depTest == DependencyTest.SURROGATE_GAUSS) {
-      indep = surrogateGaussTest(slice, ixy, prefs.binAlgorithm, prefs.surrCount, cval);
+      indep = surrogateGaussTest(slice, ixy, prefs.binAlgorithm, prefs.surrCount, cval, 
+                                 prefs.surrSequential, surrogateSeed(prefs));
     } else if (prefs.depTest == DependencyTest.SURROGATE_GENERAL) {
-      indep = surrogateGeneralTest(slice, ixy, prefs.binAlgorithm, pvalue);
+      indep = surrogateGeneralTest(slice, ixy, prefs.binAlgorithm, pvalue, 
+                                   prefs.surrSequential, surrogateSeed(prefs));
     } else if (prefs.depTest == DependencyTest.GAMMA_TEST) {
-      indep = gammaTest(ixy, binx, biny, slice.values.size(), pvalue);
+      indep = gammaTest(ixy, binx, biny, slice.size(), pvalue);
     }
 
     return indep;
@@ -119,33 +138,120 @@ public class Statistics {
 		return cval;
 	}
 
-  static protected float getSurrogateGaussDistribution(DataSlice2D slice, float ixy,
-                                                       int binAlgo, int scount) {
-    int sbinx = 0;
-    int sbiny = 0;
-    float meani = 0;
-    float meaniSq = 0;
-    float stdi = 0;
-    for (int i = 0; i < scount; i++) {
-      DataSlice2D surrogate = slice.shuffle();
-      if (i == 0) {
-        int[] sres = BinOptimizer.calculate(surrogate, binAlgo);
-        sbinx = sres[0];
-        sbiny = sres[1];
+  /**
+   * Returns the gamma distribution with the given shape and unit scale. The
+   * distribution with scale s is the same one with its values multiplied by s.
+   */
+  static protected GammaDistribution getGammaDistribution(double shape) {
+    GammaDistribution dist = gammaDists.get(shape);
+    if (dist == null) {
+      // No random generator, since the distribution is never sampled
+      dist = new GammaDistribution(null, shape, 1);
+      gammaDists.put(shape, dist);
+    }
+    return dist;
+  }
+
+  // Value of the gamma distribution with the given shape and unit scale that
+  // has an upper tail of area pvalue, cached by shape and then by pvalue
+  static protected double getGammaCriticalValue(double shape, float pvalue) {
+    Map<Float, Double> cvals = gammaCriticalValues.get(shape);
+    if (cvals == null) {
+      cvals = Collections.synchronizedMap(new HashMap<Float, Double>());
+      gammaCriticalValues.put(shape, cvals);
+    }
+    Double cval = cvals.get(pvalue);
+    if (cval == null) {
+      cval = getGammaDistribution(shape).inverseCumulativeProbability(1 - pvalue);
+      cvals.put(pvalue, cval);
+    }
+    return cval;
+  }
+
+  static protected <K, V> Map<K, V> boundedCache(final int capacity) {
+    return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return capacity < size();
       }
-      float smi = MutualInformation.calculate(surrogate, sbinx, sbiny);
-      meani += smi;
-      meaniSq += smi * smi;
+    });
+  }
+
+  static protected float getSurrogateGaussDistribution(DataSlice2D slice, float ixy,
+                                                       int binAlgo, int scount,
+                                                       long seed) {
+    float[] smis = getSurrogateMI(slice, binAlgo, scount, seed);
+    double sum = 0;
+    double sumsq = 0;
+    for (float smi: smis) {
+      sum += smi;
+      sumsq += smi * smi;
     }
-    meani /= scount;
-    meaniSq /= scount;
-    stdi = (float)Math.sqrt(Math.max(0, meaniSq - meani * meani));
+    return surrogateZ(ixy, sum, sumsq, scount);
+  }
+
+  // Z-score of ixy in the distribution of n surrogates, given the sum and the
+  // sum of squares of their mutual information
+  static protected float surrogateZ(float ixy, double sum, double sumsq, int n) {
+    float meani = (float)(sum / n);
+    float meaniSq = (float)(sumsq / n);
+    float stdi = (float)Math.sqrt(Math.max(0, meaniSq - meani * meani));
     return (ixy - meani) / stdi;
   }
 
+  /**
+   * Returns the mutual information of scount surrogates of the slice.
+   */
+  static protected float[] getSurrogateMI(DataSlice2D slice, int binAlgo, int scount,
+                                         long seed) {
+    return new Surrogates(slice, binAlgo, seed).next(scount);
+  }
+
+  // Seed of the surrogates, which is the seed of the project when there is 
+  // one so the tests can be repeated
+  static protected long surrogateSeed(Project prefs) {
+    return 0 < prefs.randomSeed ? prefs.randomSeed : new Random().nextLong();
+  }
+
+  // The number of surrogates in the next batch of a sequential test, which
+  // doubles the surrogates calculated so far, up to a total of max. The 
+  // batches stop when the thread is interrupted, and then the caller must 
+  // discard the decision of the test.
+  static protected int nextBatch(Surrogates surr, int max, boolean sequential) {
+    if (Thread.currentThread().isInterrupted()) return 0;
+    int count = surr.count();
+    if (count == 0) {
+      return sequential ? Math.min(max, MIN_SEQUENTIAL_SURROGATES) : max;
+    }
+    return Math.min(count, max - count);
+  }
+
+  /**
+   * In sequential mode, the surrogates are added in growing batches until the
+   * z-score of ixy is either inside or outside of [-cvalue, cvalue] by more
+   * than SEQUENTIAL_CONFIDENCE times its standard error, or scount surrogates
+   * are used. Batches without variance do not settle the test.
+   */
 	static protected boolean surrogateGaussTest(DataSlice2D slice, float ixy,
-                                              int binAlgo, int scount, double cvalue) {
-    float zs = getSurrogateGaussDistribution(slice, ixy, binAlgo, scount);
+                                              int binAlgo, int scount, double cvalue,
+                                              boolean sequential, long seed) {
+    Surrogates surr = new Surrogates(slice, binAlgo, seed);
+    double sum = 0;
+    double sumsq = 0;
+    float zs = Float.NaN;
+    int n;
+    while (0 < (n = nextBatch(surr, scount, sequential))) {
+      for (float smi: surr.next(n)) {
+        sum += smi;
+        sumsq += smi * smi;
+      }
+      int count = surr.count();
+      zs = surrogateZ(ixy, sum, sumsq, count);
+      if (Float.isNaN(zs) || Float.isInfinite(zs)) continue;
+      // Approximate standard error of the z-score from count surrogates
+      double se = Math.sqrt((1 + zs * zs / 2.0) / count);
+      if (SEQUENTIAL_CONFIDENCE * se < Math.abs(Math.abs(zs) - cvalue)) break;
+    }
 		if (Float.isNaN(zs) || Float.isInfinite(zs)) {
 			return true;
 		} else {
@@ -153,30 +259,31 @@ public class Statistics {
 		}
 	}
 
+  /**
+   * The pair is independent if any of the (1/pvalue - 1) surrogates has larger
+   * mutual information than ixy, so in sequential mode the test stops at the
+   * first batch where one does.
+   */
 	static protected boolean surrogateGeneralTest(DataSlice2D slice, float ixy,
-                                                int binAlgo, float pvalue) {
-		int sbinx = 0;
-		int sbiny = 0;
-		float maxMI = 0;
+                                                int binAlgo, float pvalue,
+                                                boolean sequential, long seed) {
 		int numSurr = (int)(1/pvalue) - 1;
-		for (int i = 0; i < numSurr; i++) {
-			DataSlice2D surrogate = slice.shuffle();
-			if (i == 0) {
-				int[] sres = BinOptimizer.calculate(surrogate, binAlgo);
-				sbinx = sres[0];
-				sbiny = sres[1];
+		Surrogates surr = new Surrogates(slice, binAlgo, seed);
+		boolean indep = false;
+		int n;
+		while (!indep && 0 < (n = nextBatch(surr, numSurr, sequential))) {
+			for (float smi: surr.next(n)) {
+				if (ixy < smi) indep = true;
 			}
-			maxMI = Math.max(maxMI, MutualInformation.calculate(surrogate, sbinx, sbiny));
 		}
-		return ixy < maxMI;
+		return indep;
 	}
 
 	static protected boolean gammaTest(float ixy, int binx, int biny, int count, float pvalue) {
 		double shapePar = (binx - 1) * (biny - 1) / 2d;
 		double scalePar = 1d / count;
 		try {
-			GammaDistribution gammaDist = new GammaDistribution(shapePar, scalePar);
-			double c = gammaDist.inverseCumulativeProbability(1 - pvalue);
+			double c = scalePar * getGammaCriticalValue(shapePar, pvalue);
 			return ixy <= c;
 		} catch (Exception ex) {
 			return true;
@@ -184,18 +291,13 @@ public class Statistics {
 	}
 
 	static protected boolean spearmanTest(DataSlice2D slice, double pval, int numTail) {
-		ArrayList<Value2D> items = slice.values;
-		int size = items.size();
-		double [] v1 = new double[size];
-		double [] v2 = new double[size];
-		for(int i = 0; i < size; ++i) {
-			v1[i] = items.get(i).x;
-			v2[i] = items.get(i).y;
-		}
+		int size = slice.size();
+		double [] v1 = Arrays.copyOf(slice.x, size);
+		double [] v2 = Arrays.copyOf(slice.y, size);
 		try {
 			Double s = new SpearmansCorrelation().correlation(v1,v2);
 			double t = s * Math.sqrt((size - 2) / (1 - s * s));
-			double p = 1 - new TDistribution(size - 1).cumulativeProbability(t);
+			double p = 1 - new TDistribution(null, size - 1).cumulativeProbability(t);
 			if (numTail == 1) return pval < p;
 			else return pval < 2 * p;
 		} catch (Exception ex) {
@@ -204,17 +306,12 @@ public class Statistics {
 	}
 
 	static protected boolean pearsonTest(DataSlice2D slice, double pval, int numTail) {
-		ArrayList<Value2D> items = slice.values;
-		int size = items.size();
-		double [] v1 = new double[size];
-		double [] v2 = new double[size];
-		for(int i = 0; i < size; ++i) {
-			v1[i] = items.get(i).x;
-			v2[i] = items.get(i).y;
-		}
+		int size = slice.size();
+		double [] v1 = Arrays.copyOf(slice.x, size);
+		double [] v2 = Arrays.copyOf(slice.y, size);
 		double s = new PearsonsCorrelation().correlation(v1,v2);
 		double t = s * Math.sqrt((size - 2) / (1 - s * s));
-		double p = 1 - new TDistribution(size - 1).cumulativeProbability(t);
+		double p = 1 - new TDistribution(null, size - 1).cumulativeProbability(t);
 		if (numTail == 1) return pval < p;
 		else return pval < 2 * p;
 //	  double z = 0.5 * Math.log((1+s)/(1-s));
@@ -0,0 +1,147 @@
+/* COPYRIGHT (C) 2014 Fathom Information Design. All Rights Reserved. */
+
+package miralib.shannon;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import miralib.data.DataSlice2D;
+import miralib.utils.Log;
+
+/**
+ * Sequence of surrogates of a slice, where the y values are randomly paired
+ * with the x values. The values are binned only once (using the bin sizes of
+ * a shuffled slice), so each surrogate only permutes the y bins and counts
+ * them in a reused table. The surrogates are generated in batches on demand,
+ * so the tests can stop as soon as their decision is settled. Each surrogate
+ * has its own generator derived from the seed and its index, so the results
+ * don't depend on how the batches are split between the threads.
+ *
+ */
+
+public class Surrogates {
+  // Batches are calculated in parallel only when they have at least this many
+  // surrogates
+  final static protected int MIN_PARALLEL_SURROGATES = 16;
+  static protected ExecutorService pool;
+
+  protected int size;
+  protected int sbinx, sbiny;
+  protected int[] binsx, binsy;
+  protected double[] w;
+  protected int count;
+  protected long seed;
+
+  public Surrogates(DataSlice2D slice, int binAlgo, long seed) {
+    this.seed = seed;
+    int[] sres = BinOptimizer.calculate(slice.shuffle(seed(seed, -1)), binAlgo);
+    sbinx = sres[0];
+    sbiny = sres[1];
+    size = slice.size();
+    if (empty()) return;
+    binsx = JointCounts.bins(slice.x, size, sbinx);
+    binsy = JointCounts.bins(slice.y, size, sbiny);
+    w = slice.w;
+  }
+
+  public boolean empty() {
+    return sbinx < 2 || sbiny < 2;
+  }
+
+  /**
+   * Number of surrogates generated so far.
+   */
+  public int count() {
+    return count;
+  }
+
+  /**
+   * Returns the mutual information of n new surrogates. If the thread is 
+   * interrupted, some of them are left as zero and the interrupt status is 
+   * kept, so the caller can tell that the result is not valid.
+   */
+  public float[] next(int n) {
+    final float[] smis = new float[Math.max(0, n)];
+    if (n <= 0) return smis;
+    final int offset = count;
+    count += n;
+    if (empty()) return smis;
+
+    int proc = Runtime.getRuntime().availableProcessors();
+    int nchunks = n < MIN_PARALLEL_SURROGATES ? 1 : Math.min(proc, n);
+    ArrayList<Runnable> chunks = new ArrayList<Runnable>();
+    for (int c = 0; c < nchunks; c++) {
+      final int first = c * n / nchunks;
+      final int last = (c + 1) * n / nchunks;
+      chunks.add(new Runnable() {
+        public void run() {
+          JointCounts counts = new JointCounts(sbinx, sbiny);
+          int[] perm = new int[size];
+          for (int k = first; k < last; k++) {
+            if (Thread.currentThread().isInterrupted()) return;
+            Random random = new Random(seed(seed, offset + k));
+            for (int i = 0; i < size; i++) perm[i] = i;
+            for (int i = size - 1; 0 < i; i--) {
+              int j = random.nextInt(i + 1);
+              int tmp = perm[i];
+              perm[i] = perm[j];
+              perm[j] = tmp;
+            }
+            counts.clear();
+            for (int i = 0; i < size; i++) {
+              int j = perm[i];
+              counts.add(binsx[i], binsy[j], w[i] * w[j]);
+            }
+            smis[k] = counts.mutualInformation();
+          }
+        }
+      });
+    }
+
+    if (nchunks == 1) {
+      chunks.get(0).run();
+    } else {
+      ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+      ExecutorService pool = getPool();
+      for (Runnable chunk: chunks) tasks.add(pool.submit(chunk));
+      try {
+        for (Future<?> task: tasks) task.get();
+      } catch (InterruptedException e) {
+        // The calculation was cancelled, the remaining surrogates are not needed
+        for (Future<?> task: tasks) task.cancel(true);
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        Log.error("Cannot calculate the surrogates", e);
+      }
+    }
+    return smis;
+  }
+
+  // Mixes the seed with the index of the surrogate (splitmix64), since 
+  // generators with consecutive seeds start with correlated values
+  static protected long seed(long seed, int index) {
+    long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  static synchronized protected ExecutorService getPool() {
+    if (pool == null) {
+      int proc = Runtime.getRuntime().availableProcessors();
+      pool = Executors.newFixedThreadPool(proc, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return pool;
+  }
+}
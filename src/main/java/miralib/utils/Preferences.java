@@ -23,6 +23,7 @@ public class Preferences {
   static final protected int defDepTest = DependencyTest.GAMMA_TEST;
   static final protected int defSortMethod = Project.PVALUE;
   static final protected int defSurrCount = 100;
+  static final protected boolean defSurrSequential = true;
   static final protected float defThreshold = 1E-3f;
 
   static final protected int defInitSliceSize = 1000000;
@@ -52,6 +53,7 @@ public class Preferences {
   public int depTest;
   public int sortMethod;
   public int surrCount; 
+  public boolean surrSequential;
   public float threshold;
   public int initSliceSize;
   public int maxPlotTime;
@@ -108,6 +110,7 @@ public class Preferences {
       sortMethod = Project.stringToSorting(settings.get("correlation.sorting", 
                    Project.sortingToString(defSortMethod)));
       surrCount = settings.getInteger("correlation.surrogates", defSurrCount);
+      surrSequential = settings.getBoolean("correlation.sequential", defSurrSequential);
       threshold = settings.getFloat("correlation.threshold", defThreshold);
 
       initSliceSize = settings.getInteger("performance.samplesize", defInitSliceSize);
@@ -135,6 +138,7 @@ public class Preferences {
       depTest = defDepTest;
       sortMethod = defSortMethod;
       surrCount = defSurrCount;
+      surrSequential = defSurrSequential;
       threshold = defThreshold;
       initSliceSize = defInitSliceSize;
       maxPlotTime = defMaxPlotTime;
@@ -164,6 +168,7 @@ public class Preferences {
     settings.set("correlation.algorithm", DependencyTest.algorithmToString(depTest));
     settings.set("correlation.sorting", Project.sortingToString(sortMethod));    
     settings.setInteger("correlation.surrogates", surrCount);
+    settings.setBoolean("correlation.sequential", surrSequential);
     settings.setFloat("correlation.threshold", threshold);
     settings.setInteger("performance.samplesize", initSliceSize);
     settings.setInteger("performance.plottime", maxPlotTime);
@@ -60,6 +60,7 @@ public class Project {
   public int depTest;
   public int sortMethod;
   public int surrCount; 
+  public boolean surrSequential;
   public float threshold;
   public int initSliceSize;
   public int maxPlotTime;
@@ -136,6 +137,7 @@ public class Project {
       sortMethod = Project.stringToSorting(settings.get("correlation.sorting", 
                    Project.sortingToString(prefs.sortMethod)));      
       surrCount = settings.getInteger("correlation.surrogates", prefs.surrCount);
+      surrSequential = settings.getBoolean("correlation.sequential", prefs.surrSequential);
       threshold = settings.getFloat("correlation.threshold", prefs.threshold);
 
       initSliceSize = settings.getInteger("performance.samplesize", prefs.initSliceSize);
@@ -202,6 +204,7 @@ public class Project {
       depTest = prefs.depTest;
       sortMethod = prefs.sortMethod;
       surrCount = prefs.surrCount;
+      surrSequential = prefs.surrSequential;
       threshold = prefs.threshold;
       initSliceSize = prefs.initSliceSize;
       maxPlotTime = prefs.maxPlotTime;
@@ -236,6 +239,7 @@ public class Project {
     this.depTest = that.depTest;
     this.sortMethod = that.sortMethod;
     this.surrCount = that.surrCount; 
+    this.surrSequential = that.surrSequential;
     this.threshold = that.threshold;
     this.initSliceSize = that.initSliceSize;
     this.maxPlotTime = that.maxPlotTime;
@@ -321,6 +325,7 @@ public class Project {
         settings.set("correlation.algorithm", DependencyTest.algorithmToString(depTest));
         settings.set("correlation.sorting", sortingToString(sortMethod));
         settings.setInteger("correlation.surrogates", surrCount);
+        settings.setBoolean("correlation.sequential", surrSequential);
         settings.setFloat("correlation.threshold", threshold);
 
         settings.setInteger("performance.samplesize", initSliceSize);